@@ -16,7 +16,10 @@
 package fi.kinetik.android.currencies.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.net.Uri;
+import android.os.Bundle;
+import fi.kinetik.android.currencies.util.CurrencyCode;
 import android.provider.BaseColumns;
 
 /**
@@ -40,7 +43,7 @@ public final class CurrencyContract {
 	String RATE_CURRENCY = "rate_currency";
 
 	/**
-	 * Timestamp when this conversion rate was updated.
+	 * Timestamp in millis when this conversion rate was updated.
 	 */
 	String RATE_UPDATED = "rate_updated";
 
@@ -54,6 +57,55 @@ public final class CurrencyContract {
 	 */
 	String RATE_VALUE = "rate_value";
 
+	/**
+	 * 3-letter currency code of the currency the rate is relative to. Kept
+	 * with current rates only, null for rates written without one.
+	 */
+	String RATE_BASE = "rate_base";
+
+    }
+
+    interface RateStatsColumns {
+
+	/**
+	 * Number of samples within the window, long.
+	 */
+	String STATS_COUNT = "stats_count";
+
+	/**
+	 * Lowest rate within the window, double.
+	 */
+	String STATS_MIN = "stats_min";
+
+	/**
+	 * Highest rate within the window, double.
+	 */
+	String STATS_MAX = "stats_max";
+
+	/**
+	 * Mean of the rates within the window, double.
+	 */
+	String STATS_AVERAGE = "stats_average";
+
+	/**
+	 * Latest rate within the window, double.
+	 */
+	String STATS_LAST = "stats_last";
+
+	/**
+	 * Timestamp in millis of {@link #STATS_LAST}.
+	 */
+	String STATS_LAST_UPDATED = "stats_last_updated";
+
+    }
+
+    interface ConversionColumns {
+
+	/**
+	 * Amount converted into the target currency, double.
+	 */
+	String CONVERTED_AMOUNT = "converted_amount";
+
     }
 
 
@@ -61,7 +113,7 @@ public final class CurrencyContract {
      * Currency conversion rate.
      */
     public static final class ConversionRate implements
-	    BaseColumns, ConversionRateColumns {
+	    BaseColumns, ConversionRateColumns, ConversionColumns {
 
 	private ConversionRate() {
 	    // N/A
@@ -86,6 +138,170 @@ public final class CurrencyContract {
 	public static final String CONTENT_ITEM_TYPE =
 		"vnd.android.cursor.item/currency_rates";
 
+	/**
+	 * Target currency path segment of a conversion Uri that stands for
+	 * all currencies.
+	 */
+	public static final String ALL_CURRENCIES = "*";
+
+	/**
+	 * Name of the provider method that converts a batch of amounts with a
+	 * single call. Takes {@link #EXTRA_FROM_CURRENCIES}, 
+	 * {@link #EXTRA_TO_CURRENCIES} and {@link #EXTRA_AMOUNTS} and returns
+	 * {@link #EXTRA_CONVERTED_AMOUNTS}.
+	 * 
+	 * @see #convert(ContentResolver, String[], String[], double[])
+	 */
+	public static final String METHOD_CONVERT = "convert";
+
+	/**
+	 * String array of 3-letter origin currency codes.
+	 */
+	public static final String EXTRA_FROM_CURRENCIES = "fromCurrencies";
+
+	/**
+	 * String array of 3-letter target currency codes.
+	 */
+	public static final String EXTRA_TO_CURRENCIES = "toCurrencies";
+
+	/**
+	 * Int array of packed origin currency codes, may be given instead of
+	 * {@link #EXTRA_FROM_CURRENCIES}.
+	 * 
+	 * @see CurrencyCode
+	 */
+	public static final String EXTRA_FROM_CODES = "fromCodes";
+
+	/**
+	 * Int array of packed target currency codes, may be given instead of
+	 * {@link #EXTRA_TO_CURRENCIES}.
+	 * 
+	 * @see CurrencyCode
+	 */
+	public static final String EXTRA_TO_CODES = "toCodes";
+
+	/**
+	 * Double array of amounts to convert.
+	 */
+	public static final String EXTRA_AMOUNTS = "amounts";
+
+	/**
+	 * Double array of converted amounts, NaN for unknown currencies.
+	 */
+	public static final String EXTRA_CONVERTED_AMOUNTS = "convertedAmounts";
+
+	/**
+	 * Name of the provider method that converts a batch of amounts given 
+	 * in minor units. Takes {@link #EXTRA_FROM_CURRENCIES}, 
+	 * {@link #EXTRA_TO_CURRENCIES} and {@link #EXTRA_MINOR_AMOUNTS} and 
+	 * returns {@link #EXTRA_CONVERTED_MINOR_AMOUNTS}.
+	 * 
+	 * @see #convertMinorUnits(ContentResolver, String[], String[], long[])
+	 */
+	public static final String METHOD_CONVERT_MINOR_UNITS = "convertMinorUnits";
+
+	/**
+	 * Long array of amounts to convert in minor units.
+	 */
+	public static final String EXTRA_MINOR_AMOUNTS = "minorAmounts";
+
+	/**
+	 * Long array of converted amounts in minor units, {@link #NO_AMOUNT} 
+	 * for unknown currencies.
+	 */
+	public static final String EXTRA_CONVERTED_MINOR_AMOUNTS =
+		"convertedMinorAmounts";
+
+	/**
+	 * Converted amount in minor units when conversion is not available.
+	 */
+	public static final long NO_AMOUNT = Long.MIN_VALUE;
+
+	/**
+	 * Name of the provider method that inserts or updates a batch of 
+	 * rates in one transaction. Takes {@link #EXTRA_CURRENCIES}, 
+	 * {@link #EXTRA_PROVIDERS}, {@link #EXTRA_UPDATED_TIMES} and 
+	 * {@link #EXTRA_RATES} and optionally {@link #EXTRA_BASE_CURRENCY} and
+	 * {@link #EXTRA_DELETED_CURRENCIES} and returns 
+	 * {@link #EXTRA_ROWS_WRITTEN}. Existing rates are updated 
+	 * in place and every rate is recorded into history. Observers are 
+	 * notified once, after the transaction.
+	 * 
+	 * @see #writeRates(ContentResolver, String[], String[], long[], double[])
+	 */
+	public static final String METHOD_WRITE_RATES = "writeRates";
+
+	/**
+	 * String array of 3-letter currency codes of rates to write.
+	 */
+	public static final String EXTRA_CURRENCIES = "currencies";
+
+	/**
+	 * String array of provider names of rates to write.
+	 */
+	public static final String EXTRA_PROVIDERS = "providers";
+
+	/**
+	 * Long array of update timestamps in millis of rates to write.
+	 */
+	public static final String EXTRA_UPDATED_TIMES = "updatedTimes";
+
+	/**
+	 * Double array of rates to write.
+	 */
+	public static final String EXTRA_RATES = "rates";
+
+	/**
+	 * 3-letter currency code of the currency rates to write are relative
+	 * to, String.
+	 */
+	public static final String EXTRA_BASE_CURRENCY = "baseCurrency";
+
+	/**
+	 * String array of 3-letter currency codes of rates to delete.
+	 */
+	public static final String EXTRA_DELETED_CURRENCIES = "deletedCurrencies";
+
+	/**
+	 * Number of rates written and deleted, int.
+	 */
+	public static final String EXTRA_ROWS_WRITTEN = "rowsWritten";
+
+	/**
+	 * Path segment that marks conversion of minor unit amounts.
+	 */
+	private static final String MINOR_UNITS = "minor";
+
+	/**
+	 * Query parameter of a conversion Uri for converting with historical
+	 * rates, timestamp in millis.
+	 */
+	public static final String PARAM_AS_OF = "at";
+
+	/**
+	 * Query parameter of change notification Uris of rates that lists the
+	 * changed currencies, comma separated. Notifications without it may
+	 * concern any rate.
+	 * 
+	 * @see #getChangedCurrencies(Uri)
+	 */
+	public static final String PARAM_CHANGED = "changed";
+
+	/**
+	 * Returns currencies whose rates changed, as reported by a change
+	 * notification Uri (ContentObserver#onChange(boolean, Uri)).
+	 * 
+	 * @param uri notification Uri
+	 * @return 3-letter currency codes or null if any rate may have changed
+	 */
+	public static String[] getChangedCurrencies(Uri uri) {
+
+	    final String changed = uri != null
+		    ? uri.getQueryParameter(PARAM_CHANGED) : null;
+	    return changed != null ? changed.split(",") : null;
+
+	}
+
 	/**
 	 * Creates an Uri that points to a conversion rate item.
 	 * 
@@ -95,13 +311,15 @@ public final class CurrencyContract {
 	public static Uri buildRateUri(String currency) {
 
 	    return CONTENT_URI.buildUpon().
-		    appendPath(currency.toUpperCase()).build();
+		    appendPath(CurrencyCode.toUpperCase(currency)).build();
 
 	}
 
 	/**
 	 * Returns Uri that can be passed to ContentResolver to ask for currency
 	 * conversion from <code>fromCurrency</code> to <code>toCurrency</code>.
+	 * The result cursor has a single row with {@link #CONVERTED_AMOUNT} or 
+	 * no rows if either of the currencies is unknown.
 	 * 
 	 * @param fromCurrency 3-letter currency code of the origin currency
 	 * @param toCurrency 3-letter currency code of the target currency
@@ -113,12 +331,190 @@ public final class CurrencyContract {
 		String amount) {
 
 	    return CONTENT_URI.buildUpon().
-		    appendPath(fromCurrency.toUpperCase()).
-		    appendPath(toCurrency.toUpperCase()).
+		    appendPath(CurrencyCode.toUpperCase(fromCurrency)).
+		    appendPath(CurrencyCode.toUpperCase(toCurrency)).
 		    appendPath(amount).build();
 
 	}
 
+	/**
+	 * Returns Uri that can be passed to ContentResolver to convert 
+	 * <code>amount</code> from <code>fromCurrency</code> into every known
+	 * currency with a single query. The result cursor has a row per target
+	 * currency with {@link #RATE_CURRENCY} and {@link #CONVERTED_AMOUNT}.
+	 * 
+	 * @param fromCurrency 3-letter currency code of the origin currency
+	 * @param amount amount to convert, double value
+	 * @return
+	 */
+	public static Uri buildConversionUri(String fromCurrency,
+		String amount) {
+
+	    return buildConversionUri(fromCurrency, ALL_CURRENCIES, amount);
+
+	}
+
+	/**
+	 * Returns Uri to convert an amount given in minor units (e.g. cents) of
+	 * <code>fromCurrency</code> into minor units of <code>toCurrency</code>.
+	 * Conversion is done in fixed-point and rounded half-up to the minor 
+	 * unit of the target currency. The result cursor has a single row with
+	 * {@link #CONVERTED_AMOUNT} as long or no rows if either of the 
+	 * currencies is unknown.
+	 * 
+	 * @param fromCurrency 3-letter currency code of the origin currency
+	 * @param toCurrency 3-letter currency code of the target currency
+	 * @param amount amount to convert in minor units
+	 * @return
+	 */
+	public static Uri buildMinorUnitConversionUri(String fromCurrency,
+		String toCurrency,
+		long amount) {
+
+	    return CONTENT_URI.buildUpon().
+		    appendPath(CurrencyCode.toUpperCase(fromCurrency)).
+		    appendPath(CurrencyCode.toUpperCase(toCurrency)).
+		    appendPath(Long.toString(amount)).
+		    appendPath(MINOR_UNITS).build();
+
+	}
+
+	/**
+	 * Converts a batch of amounts with one call to the provider. All arrays
+	 * must be of same length, amount at index i is converted from 
+	 * <code>fromCurrencies[i]</code> to <code>toCurrencies[i]</code>.
+	 * 
+	 * @param resolver
+	 * @param fromCurrencies 3-letter currency codes of the origin currencies
+	 * @param toCurrencies 3-letter currency codes of the target currencies
+	 * @param amounts amounts to convert
+	 * @return converted amounts, NaN where either currency is unknown
+	 */
+	public static double[] convert(ContentResolver resolver,
+		String[] fromCurrencies,
+		String[] toCurrencies,
+		double[] amounts) {
+
+	    final Bundle extras = new Bundle(3);
+	    extras.putStringArray(EXTRA_FROM_CURRENCIES, fromCurrencies);
+	    extras.putStringArray(EXTRA_TO_CURRENCIES, toCurrencies);
+	    extras.putDoubleArray(EXTRA_AMOUNTS, amounts);
+
+	    return resolver.call(CONTENT_URI, METHOD_CONVERT, null, extras).
+		    getDoubleArray(EXTRA_CONVERTED_AMOUNTS);
+
+	}
+
+	/**
+	 * Converts a batch of amounts given in minor units with one call to the
+	 * provider. All arrays must be of same length.
+	 * 
+	 * @param resolver
+	 * @param fromCurrencies 3-letter currency codes of the origin currencies
+	 * @param toCurrencies 3-letter currency codes of the target currencies
+	 * @param amounts amounts to convert in minor units
+	 * @return converted amounts in minor units, {@link #NO_AMOUNT} where
+	 * either currency is unknown
+	 */
+	public static long[] convertMinorUnits(ContentResolver resolver,
+		String[] fromCurrencies,
+		String[] toCurrencies,
+		long[] amounts) {
+
+	    final Bundle extras = new Bundle(3);
+	    extras.putStringArray(EXTRA_FROM_CURRENCIES, fromCurrencies);
+	    extras.putStringArray(EXTRA_TO_CURRENCIES, toCurrencies);
+	    extras.putLongArray(EXTRA_MINOR_AMOUNTS, amounts);
+
+	    return resolver.call(CONTENT_URI, METHOD_CONVERT_MINOR_UNITS, null,
+		    extras).getLongArray(EXTRA_CONVERTED_MINOR_AMOUNTS);
+
+	}
+
+	/**
+	 * Inserts or updates a batch of rates with one call to the provider. 
+	 * All arrays must be of same length.
+	 * 
+	 * @param resolver
+	 * @param currencies 3-letter currency codes
+	 * @param providers symbolic names of the providers of the rates
+	 * @param updated timestamps in millis when the rates were acquired
+	 * @param rates conversion rates
+	 * @return number of rates written
+	 */
+	public static int writeRates(ContentResolver resolver,
+		String[] currencies,
+		String[] providers,
+		long[] updated,
+		double[] rates) {
+
+	    return writeRates(resolver, null, currencies, providers, updated,
+		    rates, null);
+
+	}
+
+	/**
+	 * Inserts or updates a batch of rates and deletes rates of other 
+	 * currencies with one call to the provider, in a single transaction.
+	 * 
+	 * @param resolver
+	 * @param baseCurrency 3-letter code of the currency rates are relative
+	 * to, recorded with the rates so that the provider need not look it up
+	 * @param currencies 3-letter currency codes
+	 * @param providers symbolic names of the providers of the rates
+	 * @param updated timestamps in millis when the rates were acquired
+	 * @param rates conversion rates
+	 * @param deleted 3-letter currency codes of rates to delete, may be 
+	 * null
+	 * @return number of rates written and deleted
+	 */
+	public static int writeRates(ContentResolver resolver,
+		String baseCurrency,
+		String[] currencies,
+		String[] providers,
+		long[] updated,
+		double[] rates,
+		String[] deleted) {
+
+	    final Bundle extras = new Bundle(6);
+	    extras.putString(EXTRA_BASE_CURRENCY, baseCurrency);
+	    extras.putStringArray(EXTRA_CURRENCIES, currencies);
+	    extras.putStringArray(EXTRA_PROVIDERS, providers);
+	    extras.putLongArray(EXTRA_UPDATED_TIMES, updated);
+	    extras.putDoubleArray(EXTRA_RATES, rates);
+	    if (deleted != null) {
+		extras.putStringArray(EXTRA_DELETED_CURRENCIES, deleted);
+	    }
+
+	    return resolver.call(CONTENT_URI, METHOD_WRITE_RATES, null, extras).
+		    getInt(EXTRA_ROWS_WRITTEN);
+
+	}
+
+	/**
+	 * Returns Uri that converts amount with the rates that were in effect 
+	 * at given time, i.e. the latest rates of both currencies updated at or
+	 * before <code>asOf</code>. The result cursor is like the one of
+	 * {@link #buildConversionUri(String, String, String)}.
+	 * 
+	 * @param fromCurrency 3-letter currency code of the origin currency
+	 * @param toCurrency 3-letter currency code of the target currency
+	 * @param amount amount to convert, double value
+	 * @param asOf timestamp in millis
+	 * @return
+	 */
+	public static Uri buildConversionUri(String fromCurrency,
+		String toCurrency,
+		String amount,
+		long asOf) {
+
+	    return buildConversionUri(fromCurrency, toCurrency, amount).
+		    buildUpon().
+		    appendQueryParameter(PARAM_AS_OF, Long.toString(asOf)).
+		    build();
+
+	}
+
 	/**
 	 * Creates a ContentProviderOperation that can be added to a batch of 
 	 * operations that updates or inserts currency conversion rate by
@@ -159,9 +555,212 @@ public final class CurrencyContract {
 	    return ContentProviderOperation.newDelete(CONTENT_URI).build();
 	    
 	}
+
+	/**
+	 * Creates a ContentProviderOperation that updates an existing 
+	 * conversion rate in place, keeping its row. The new rate is recorded 
+	 * into history.
+	 * 
+	 * @param currency target currency of conversion
+	 * @param provider symbolic name of the provider for this rate
+	 * @param updated timestamp when the rate was acquired
+	 * @param rate conversion rate
+	 * 
+	 * @return operation to be added to batch of operations
+	 */
+	public static ContentProviderOperation newRateUpdateOperation(
+		String currency,
+		String provider,
+		long updated,
+		double rate) {
+
+	    return ContentProviderOperation.newUpdate(buildRateUri(currency)).
+		    withValue(RATE_PROVIDER, provider).
+		    withValue(RATE_UPDATED, updated).
+		    withValue(RATE_VALUE, rate).
+		    build();
+
+	}
+
+	/**
+	 * Returns operation that will delete conversion rate of a currency.
+	 * 
+	 * @param currency
+	 * @return
+	 */
+	public static ContentProviderOperation newRateDeleteOperation(
+		String currency) {
+
+	    return ContentProviderOperation.newDelete(buildRateUri(currency)).
+		    build();
+
+	}
 	
     }
 
+    /**
+     * History of currency conversion rates. A sample is recorded each time a
+     * rate is written, keyed by currency and {@link #RATE_UPDATED}. History
+     * of a currency holds {@link #RATE_UPDATED} and {@link #RATE_VALUE} of 
+     * each sample in time order, {@link #CONTENT_URI} holds the history of
+     * every currency, with {@link #RATE_CURRENCY}, one currency after 
+     * another.
+     * 
+     * Queries may project any of these three columns and sort by 
+     * {@link #RATE_UPDATED}, ascending or descending. Samples are selected
+     * with the {@link #PARAM_FROM} and {@link #PARAM_TO} parameters, a
+     * selection is not supported.
+     */
+    public static final class RateHistory implements
+	    BaseColumns, ConversionRateColumns {
 
-}
+	private RateHistory() {
+	    // N/A
+	}
 
+	/**
+	 * The content:// style URI for this table.
+	 */
+	public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI,
+		"history");
+
+	/**
+	 * The MIME-type of {@link #CONTENT_URI} providing a directory of
+	 * historical rates.
+	 */
+	public static final String CONTENT_TYPE =
+		"vnd.android.cursor.dir/currency_rate_history";
+
+	/**
+	 * Query parameter for the start of a time range, inclusive, millis.
+	 */
+	public static final String PARAM_FROM = "from";
+
+	/**
+	 * Query parameter for the end of a time range, exclusive, millis.
+	 */
+	public static final String PARAM_TO = "to";
+
+	/**
+	 * Creates an Uri that points to the rate history of a currency, 
+	 * ordered by {@link #RATE_UPDATED}.
+	 * 
+	 * @param currency
+	 * @return
+	 */
+	public static Uri buildHistoryUri(String currency) {
+
+	    return CONTENT_URI.buildUpon().
+		    appendPath(CurrencyCode.toUpperCase(currency)).build();
+
+	}
+
+	/**
+	 * Creates an Uri that points to the rate history of a currency within
+	 * a time range.
+	 * 
+	 * @param currency
+	 * @param from start of the range, inclusive, millis
+	 * @param to end of the range, exclusive, millis
+	 * @return
+	 */
+	public static Uri buildHistoryUri(String currency, long from, long to) {
+
+	    return buildHistoryUri(currency).buildUpon().
+		    appendQueryParameter(PARAM_FROM, Long.toString(from)).
+		    appendQueryParameter(PARAM_TO, Long.toString(to)).
+		    build();
+
+	}
+
+	/**
+	 * Returns operation that deletes history recorded before given time.
+	 * Compressed blocks of older history are deleted once all of their
+	 * samples are before the time.
+	 * 
+	 * @param before timestamp in millis
+	 * @return
+	 */
+	public static ContentProviderOperation newPruneOperation(long before) {
+
+	    return ContentProviderOperation.newDelete(CONTENT_URI.buildUpon().
+		    appendQueryParameter(PARAM_TO, Long.toString(before)).
+		    build()).build();
+
+	}
+
+    }
+
+    /**
+     * Aggregates of rate history within a time window. The cursor holds a row
+     * per currency that has samples within the window, with 
+     * {@link #RATE_CURRENCY} and the stats columns. Full days of the window
+     * are read from per-day summaries, so long windows are cheap.
+     */
+    public static final class RateStats implements
+	    ConversionRateColumns, RateStatsColumns {
+
+	private RateStats() {
+	    // N/A
+	}
+
+	/**
+	 * The MIME-type of a stats Uri.
+	 */
+	public static final String CONTENT_TYPE =
+		"vnd.android.cursor.dir/currency_rate_stats";
+
+	/**
+	 * Query parameter for the start of the window, inclusive, millis.
+	 */
+	public static final String PARAM_FROM = RateHistory.PARAM_FROM;
+
+	/**
+	 * Query parameter for the end of the window, exclusive, millis.
+	 */
+	public static final String PARAM_TO = RateHistory.PARAM_TO;
+
+	private static final String STATS = "stats";
+
+	/**
+	 * Creates an Uri that points to the stats of a currency within a time
+	 * window.
+	 * 
+	 * @param currency
+	 * @param from start of the window, inclusive, millis
+	 * @param to end of the window, exclusive, millis
+	 * @return
+	 */
+	public static Uri buildStatsUri(String currency, long from, long to) {
+
+	    return ConversionRate.CONTENT_URI.buildUpon().
+		    appendPath(CurrencyCode.toUpperCase(currency)).
+		    appendPath(STATS).
+		    appendQueryParameter(PARAM_FROM, Long.toString(from)).
+		    appendQueryParameter(PARAM_TO, Long.toString(to)).
+		    build();
+
+	}
+
+	/**
+	 * Creates an Uri that points to the stats of all currencies within a
+	 * time window.
+	 * 
+	 * @param from start of the window, inclusive, millis
+	 * @param to end of the window, exclusive, millis
+	 * @return
+	 */
+	public static Uri buildStatsUri(long from, long to) {
+
+	    return ConversionRate.CONTENT_URI.buildUpon().
+		    appendPath(STATS).
+		    appendQueryParameter(PARAM_FROM, Long.toString(from)).
+		    appendQueryParameter(PARAM_TO, Long.toString(to)).
+		    build();
+
+	}
+
+    }
+
+
+}
@@ -31,12 +31,94 @@ class CurrencyDatabaseHelper extends SQLiteOpenHelper {
 
     private static final int VER_LAUNCH = 2;
 
-    private static final int DATABASE_VERSION = VER_LAUNCH;
+    private static final int VER_HISTORY = 3;
+
+    private static final int VER_HISTORY_BLOCKS = 4;
+
+    private static final int VER_DAILY_STATS = 5;
+
+    private static final int VER_RATE_BASE = 6;
+
+    private static final int DATABASE_VERSION = VER_RATE_BASE;
 
     public interface Tables {
 
 	String CURRENCY_RATE = "currency_rate";
 
+	String CURRENCY_RATE_HISTORY = "currency_rate_history";
+
+	String CURRENCY_RATE_BLOCK = "currency_rate_block";
+
+	String CURRENCY_RATE_DAILY = "currency_rate_daily";
+
+    }
+
+    /**
+     * Columns of compressed blocks of rate history.
+     * 
+     * @see RateSeriesEncoder
+     */
+    interface RateBlockColumns {
+
+	/**
+	 * Timestamp of the first sample in block.
+	 */
+	String BLOCK_START = "block_start";
+
+	/**
+	 * Timestamp of the last sample in block.
+	 */
+	String BLOCK_END = "block_end";
+
+	/**
+	 * Number of samples in block.
+	 */
+	String BLOCK_COUNT = "block_count";
+
+	/**
+	 * Encoded samples.
+	 */
+	String BLOCK_DATA = "block_data";
+
+    }
+
+    /**
+     * Columns of per-day summaries of rate history.
+     *
+     * @see RateStatsStore
+     */
+    interface RateDailyColumns {
+
+	/**
+	 * Day since epoch, in UTC.
+	 */
+	String DAY = "day";
+
+	String DAY_MIN = "day_min";
+
+	String DAY_MAX = "day_max";
+
+	String DAY_SUM = "day_sum";
+
+	String DAY_COUNT = "day_count";
+
+	/**
+	 * Latest rate of the day.
+	 */
+	String DAY_LAST = "day_last";
+
+	String DAY_LAST_UPDATED = "day_last_updated";
+
+    }
+
+    interface Indexes {
+
+	/**
+	 * Covering index for as-of lookups, a rate at given time is a single
+	 * seek without touching the table.
+	 */
+	String CURRENCY_RATE_HISTORY_AS_OF = "currency_rate_history_as_of";
+
     }
 
 
@@ -47,9 +129,47 @@ class CurrencyDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
-	// no upgrade, allways drop & create
-	db.execSQL("DROP TABLE IF EXISTS " + Tables.CURRENCY_RATE + ";");
-	onCreate(db);
+	int version = oldVersion;
+
+	switch (version) {
+	    case VER_LAUNCH:
+		createHistoryTable(db);
+		// launch version stored update times in seconds
+		db.execSQL("UPDATE " + Tables.CURRENCY_RATE + " SET "
+			+ RATE_UPDATED + "=" + RATE_UPDATED + "*1000;");
+		// current rates are the first entries of history
+		db.execSQL("INSERT INTO " + Tables.CURRENCY_RATE_HISTORY + "("
+			+ RATE_CURRENCY + "," + RATE_PROVIDER + ","
+			+ RATE_UPDATED + "," + RATE_VALUE + ") SELECT "
+			+ RATE_CURRENCY + "," + RATE_PROVIDER + ","
+			+ RATE_UPDATED + "," + RATE_VALUE + " FROM "
+			+ Tables.CURRENCY_RATE + ";");
+		version = VER_HISTORY;
+	    case VER_HISTORY:
+		createBlockTable(db);
+		version = VER_HISTORY_BLOCKS;
+	    case VER_HISTORY_BLOCKS:
+		createDailyTable(db);
+		RateStatsStore.rebuild(db);
+		version = VER_DAILY_STATS;
+	    case VER_DAILY_STATS:
+		// base of existing rates is not known, they stay null until synced
+		db.execSQL("ALTER TABLE " + Tables.CURRENCY_RATE
+			+ " ADD COLUMN " + RATE_BASE + " TEXT;");
+		version = VER_RATE_BASE;
+	}
+
+	// unknown version, drop & create
+	if (version != DATABASE_VERSION) {
+	    db.execSQL("DROP TABLE IF EXISTS " + Tables.CURRENCY_RATE + ";");
+	    db.execSQL("DROP TABLE IF EXISTS " + Tables.CURRENCY_RATE_HISTORY
+		    + ";");
+	    db.execSQL("DROP TABLE IF EXISTS " + Tables.CURRENCY_RATE_BLOCK
+		    + ";");
+	    db.execSQL("DROP TABLE IF EXISTS " + Tables.CURRENCY_RATE_DAILY
+		    + ";");
+	    onCreate(db);
+	}
 
     }
 
@@ -62,8 +182,61 @@ class CurrencyDatabaseHelper extends SQLiteOpenHelper {
 		+ RATE_PROVIDER + " TEXT NOT NULL,"
 		+ RATE_UPDATED + " INTEGER NOT NULL,"
 		+ RATE_VALUE + " REAL NOT NULL,"
+		+ RATE_BASE + " TEXT,"
 		+ "UNIQUE (" + RATE_CURRENCY + ") ON CONFLICT REPLACE);");
 
+	createHistoryTable(db);
+	createBlockTable(db);
+	createDailyTable(db);
+
+    }
+
+    private void createHistoryTable(SQLiteDatabase db) {
+
+	db.execSQL("CREATE TABLE " + Tables.CURRENCY_RATE_HISTORY + "("
+		+ BaseColumns._ID + " INTEGER PRIMARY KEY,"
+		+ RATE_CURRENCY + " TEXT NOT NULL,"
+		+ RATE_PROVIDER + " TEXT NOT NULL,"
+		+ RATE_UPDATED + " INTEGER NOT NULL,"
+		+ RATE_VALUE + " REAL NOT NULL,"
+		+ "UNIQUE (" + RATE_CURRENCY + "," + RATE_UPDATED
+		+ ") ON CONFLICT REPLACE);");
+
+	db.execSQL("CREATE INDEX " + Indexes.CURRENCY_RATE_HISTORY_AS_OF
+		+ " ON " + Tables.CURRENCY_RATE_HISTORY + "("
+		+ RATE_CURRENCY + "," + RATE_UPDATED + "," + RATE_VALUE + ");");
+
+    }
+
+    private void createBlockTable(SQLiteDatabase db) {
+
+	db.execSQL("CREATE TABLE " + Tables.CURRENCY_RATE_BLOCK + "("
+		+ BaseColumns._ID + " INTEGER PRIMARY KEY,"
+		+ RATE_CURRENCY + " TEXT NOT NULL,"
+		+ RateBlockColumns.BLOCK_START + " INTEGER NOT NULL,"
+		+ RateBlockColumns.BLOCK_END + " INTEGER NOT NULL,"
+		+ RateBlockColumns.BLOCK_COUNT + " INTEGER NOT NULL,"
+		+ RateBlockColumns.BLOCK_DATA + " BLOB NOT NULL,"
+		+ "UNIQUE (" + RATE_CURRENCY + "," + RateBlockColumns.BLOCK_START
+		+ ") ON CONFLICT REPLACE);");
+
+    }
+
+    private void createDailyTable(SQLiteDatabase db) {
+
+	db.execSQL("CREATE TABLE " + Tables.CURRENCY_RATE_DAILY + "("
+		+ BaseColumns._ID + " INTEGER PRIMARY KEY,"
+		+ RATE_CURRENCY + " TEXT NOT NULL,"
+		+ RateDailyColumns.DAY + " INTEGER NOT NULL,"
+		+ RateDailyColumns.DAY_MIN + " REAL NOT NULL,"
+		+ RateDailyColumns.DAY_MAX + " REAL NOT NULL,"
+		+ RateDailyColumns.DAY_SUM + " REAL NOT NULL,"
+		+ RateDailyColumns.DAY_COUNT + " INTEGER NOT NULL,"
+		+ RateDailyColumns.DAY_LAST + " REAL NOT NULL,"
+		+ RateDailyColumns.DAY_LAST_UPDATED + " INTEGER NOT NULL,"
+		+ "UNIQUE (" + RATE_CURRENCY + "," + RateDailyColumns.DAY
+		+ ") ON CONFLICT REPLACE);");
+
     }
 
 }
@@ -18,22 +18,36 @@ package fi.kinetik.android.currencies.provider;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
-import android.provider.BaseColumns;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionColumns;
 import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRate;
 import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRateColumns;
+import fi.kinetik.android.currencies.provider.CurrencyContract.RateHistory;
+import fi.kinetik.android.currencies.provider.CurrencyContract.RateStats;
 import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.Tables;
 import fi.kinetik.android.currencies.spi.RatesSpiFactory;
+import fi.kinetik.android.currencies.util.CurrencyCode;
 import fi.kinetik.android.currencies.util.SelectionBuilder;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
 
 /**
  *
@@ -51,27 +65,114 @@ public class CurrencyProvider extends ContentProvider {
 
     private static final int RATES_CONVERSION = 102;
 
+    private static final int RATES_CONVERSION_MINOR = 103;
+
+    private static final int RATES_STATS = 104;
+
+    private static final int RATES_ID_STATS = 105;
+
+    private static final int HISTORY = 200;
+
+    private static final int HISTORY_ID = 201;
+
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
+    /**
+     * Number of closed row cursors kept, about the number of binder threads
+     * querying at once.
+     */
+    private static final int ROW_CURSOR_POOL_SIZE = 4;
+
+    /**
+     * In-memory snapshot of the conversion rates that conversions are 
+     * computed from. Null until loaded, loaded lazily from snapshot file or
+     * database on cold start and reloaded after each batch of updates.
+     */
+    private volatile RateTable mRateTable;
+
+    /**
+     * Incremented each time rates are written, guards against publishing a
+     * rate table that was loaded before the write.
+     */
+    private int mRateTableGeneration;
+
+    /**
+     * Last published rate table, kept over invalidation so that the next
+     * table only recomputes cross rates that changed.
+     */
+    private RateTable mPreviousRateTable;
+
+    private final Object mRateTableLock = new Object();
+
+    /**
+     * Currency the stored rates are relative to, null until known. Read
+     * from the rates or the snapshot rather than from the SPI factory.
+     */
+    private volatile String mBaseCurrency;
+
+    /**
+     * Binary copy of the rates of the last table loaded from database, 
+     * deleted whenever rates are written.
+     * 
+     * @see RateSnapshot
+     */
+    private File mSnapshotFile;
+
+    /**
+     * Changes made by the batch being applied on the calling thread, null
+     * outside of a batch. Notifications of a batch are sent once at its 
+     * end.
+     */
+    private final ThreadLocal<Changes> mBatchChanges = new ThreadLocal<Changes>();
+
+    /**
+     * Cursors of single conversions and rates, reused once closed.
+     */
+    private final RowCursor.Pool mRowCursors =
+	    new RowCursor.Pool(ROW_CURSOR_POOL_SIZE);
+
     interface Query {
 
+	String[] CONVERSION_PROJECTION = new String[]{
+	    ConversionColumns.CONVERTED_AMOUNT
+	};
+
+	String[] HISTORY_PROJECTION = new String[]{
+	    RateHistory.RATE_UPDATED,
+	    RateHistory.RATE_VALUE
+	};
+
 	/**
-	 * A quite inefficient query that performs the math of:
-	 * 
-	 * ((input-currency / base-currency) / (output-currency / base-currency) * amount)
-	 * 
+	 * Columns of history of all currencies, also the columns history can
+	 * be projected to.
 	 */
-	String CONVERSION_SQL =
-		"select ((" + ConversionRateColumns.RATE_VALUE
-		+ " / (select " + ConversionRateColumns.RATE_VALUE
-		+ " from " + Tables.CURRENCY_RATE + " where "
-		+ ConversionRateColumns.RATE_CURRENCY + "=?))" // input currency
-		+ "/ (" + ConversionRateColumns.RATE_VALUE + " / (select "
-		+ ConversionRateColumns.RATE_VALUE
-		+ " from " + Tables.CURRENCY_RATE + " where "
-		+ ConversionRateColumns.RATE_CURRENCY + "=?)) * ?)" // output currency, amount
-		+ " from " + Tables.CURRENCY_RATE
-		+ " where rate_currency =?"; // base currency
+	String[] HISTORY_ALL_PROJECTION = new String[]{
+	    RateHistory.RATE_CURRENCY,
+	    RateHistory.RATE_UPDATED,
+	    RateHistory.RATE_VALUE
+	};
+
+	String[] CONVERSION_ALL_PROJECTION = new String[]{
+	    ConversionRateColumns.RATE_CURRENCY,
+	    ConversionColumns.CONVERTED_AMOUNT
+	};
+
+	String[] RATE_PROJECTION = new String[]{
+	    ConversionRateColumns.RATE_CURRENCY,
+	    ConversionRateColumns.RATE_PROVIDER,
+	    ConversionRateColumns.RATE_UPDATED,
+	    ConversionRateColumns.RATE_VALUE
+	};
+
+	String[] STATS_PROJECTION = new String[]{
+	    RateStats.RATE_CURRENCY,
+	    RateStats.STATS_COUNT,
+	    RateStats.STATS_MIN,
+	    RateStats.STATS_MAX,
+	    RateStats.STATS_AVERAGE,
+	    RateStats.STATS_LAST,
+	    RateStats.STATS_LAST_UPDATED
+	};
 
     }
 
@@ -81,6 +182,7 @@ public class CurrencyProvider extends ContentProvider {
 
 	final Context context = getContext();
 	mDbHelper = createDatabaseHelper(context);
+	mSnapshotFile = context.getDatabasePath(RateSnapshot.FILE_NAME);
 	return true;
 
     }
@@ -95,7 +197,20 @@ public class CurrencyProvider extends ContentProvider {
 	final int retValue = builder.where(selection, selectionArgs).update(db,
 		values);
 
-	getContext().getContentResolver().notifyChange(uri, null);
+	// rate changed in place, history gets the row as it is now
+	if (retValue > 0 && sUriMatcher.match(uri) == RATES_ID
+		&& values.containsKey(ConversionRateColumns.RATE_VALUE)) {
+	    final ContentValues rate = readRate(db,
+		    CurrencyCode.toUpperCase(uri.getPathSegments().get(1)));
+	    if (rate != null) {
+		recordHistory(db, rate);
+	    }
+	}
+
+	if (retValue > 0) {
+	    notifyChanged(uri, values.containsKey(
+		    ConversionRateColumns.RATE_VALUE));
+	}
 	return retValue;
 
     }
@@ -104,9 +219,24 @@ public class CurrencyProvider extends ContentProvider {
     public int delete(Uri uri, String selection, String[] selectionArgs) {
 
 	final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+	if (sUriMatcher.match(uri) == HISTORY
+		&& uri.getQueryParameter(RateHistory.PARAM_TO) != null) {
+	    final long before =
+		    parseTime(uri.getQueryParameter(RateHistory.PARAM_TO));
+	    RateStatsStore.prune(db, before);
+	    final int pruned = RateHistoryStore.prune(db, before);
+	    if (pruned > 0) {
+		notifyChanged(uri, false);
+	    }
+	    return pruned;
+	}
+
 	final SelectionBuilder builder = buildSimpleSelection(uri);
 	int retVal = builder.where(selection, selectionArgs).delete(db);
-	getContext().getContentResolver().notifyChange(uri, null);
+	if (retVal > 0) {
+	    notifyChanged(uri, false);
+	}
 	return retVal;
 
     }
@@ -119,10 +249,14 @@ public class CurrencyProvider extends ContentProvider {
 	    case RATES:
 		final SQLiteDatabase db = mDbHelper.getWritableDatabase();
 		db.insertOrThrow(Tables.CURRENCY_RATE, null, values);
-		getContext().getContentResolver().notifyChange(uri, null);
+		recordHistory(db, values);
 		final String currency =
 			values.getAsString(
 			ConversionRateColumns.RATE_CURRENCY);
+		final Changes changes = new Changes();
+		changes.addRate(currency);
+		changes.mHistory = true;
+		notifyChanged(changes);
 		return ConversionRate.buildRateUri(currency);
 	    default:
 		throw new IllegalArgumentException("unknown uri: " + uri);
@@ -133,21 +267,77 @@ public class CurrencyProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection,
 	    String[] selectionArgs, String sortOrder) {
 
+	final Cursor cursor = queryUri(uri, projection, selection, sortOrder);
+
+	// conversions and stats answer a single question and are asked again
+	// rather than observed, registering an observer would only cost
+	switch (sUriMatcher.match(uri)) {
+	    case RATES:
+	    case RATES_ID:
+		cursor.setNotificationUri(getContext().getContentResolver(),
+			ConversionRate.CONTENT_URI);
+		break;
+	    case HISTORY:
+	    case HISTORY_ID:
+		cursor.setNotificationUri(getContext().getContentResolver(),
+			RateHistory.CONTENT_URI);
+		break;
+	}
+	return cursor;
+
+    }
+
+    private Cursor queryUri(Uri uri, String[] projection, String selection,
+	    String sortOrder) {
+
 	switch (sUriMatcher.match(uri)) {
 
 	    case RATES_CONVERSION: {
 
 		final List<String> segments = uri.getPathSegments();
-		final String fromCurrency = segments.get(1);
-		final String toCurrency = segments.get(2);
-		final String amount = segments.get(3);
+		final String asOf = uri.getQueryParameter(
+			ConversionRate.PARAM_AS_OF);
+		if (asOf != null) {
+		    return queryConversionAsOf(segments.get(1),
+			    segments.get(2),
+			    parseAmount(segments.get(3)),
+			    parseTime(asOf));
+		}
 
-		final SQLiteDatabase db = mDbHelper.getReadableDatabase();
-		return db.rawQuery(Query.CONVERSION_SQL, new String[]{
-			    fromCurrency,
-			    toCurrency,
-			    amount,
-			    getBaseCurrency()});
+		if (ConversionRate.ALL_CURRENCIES.equals(segments.get(2))) {
+		    return queryConversionToAll(segments.get(1),
+			    parseAmount(segments.get(3)));
+		}
+
+		final RateTable table = getRateTable();
+		final int from = table.ordinalOf(segments.get(1));
+		final int to = table.ordinalOf(segments.get(2));
+		final double amount = parseAmount(segments.get(3));
+
+		final RowCursor cursor =
+			mRowCursors.obtain(Query.CONVERSION_PROJECTION);
+		if (from != RateTable.NO_CURRENCY && to != RateTable.NO_CURRENCY) {
+		    cursor.addRow().setDouble(0, table.convert(from, to, amount));
+		}
+		return cursor;
+
+	    }
+
+	    case RATES_CONVERSION_MINOR: {
+
+		final List<String> segments = uri.getPathSegments();
+		final RateTable table = getRateTable();
+		final long converted = convertMinorUnits(table,
+			table.ordinalOf(segments.get(1)),
+			table.ordinalOf(segments.get(2)),
+			parseMinorAmount(segments.get(3)));
+
+		final RowCursor cursor =
+			mRowCursors.obtain(Query.CONVERSION_PROJECTION);
+		if (converted != ConversionRate.NO_AMOUNT) {
+		    cursor.addRow().setLong(0, converted);
+		}
+		return cursor;
 
 	    }
 
@@ -160,47 +350,979 @@ public class CurrencyProvider extends ContentProvider {
 
 	    case RATES_ID: {
 		final List<String> segments = uri.getPathSegments();
-		final String currency = segments.get(1).toUpperCase();
+		final String currency =
+			CurrencyCode.toUpperCase(segments.get(1));
+		final Cursor cursor = queryRateFromTable(currency, projection);
+		if (cursor != null) {
+		    return cursor;
+		}
 		final SQLiteDatabase db = mDbHelper.getReadableDatabase();
 		return buildSimpleSelection(ConversionRate.CONTENT_URI).
 			whereEq(ConversionRateColumns.RATE_CURRENCY, currency).
 			query(db, projection, null);
 	    }
 
+	    case RATES_ID_STATS: {
+		final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		final MatrixCursor cursor =
+			new MatrixCursor(Query.STATS_PROJECTION, 1);
+		addStatsRow(cursor, db,
+			CurrencyCode.toUpperCase(uri.getPathSegments().get(1)),
+			getTimeParameter(uri, RateStats.PARAM_FROM, Long.MIN_VALUE),
+			getTimeParameter(uri, RateStats.PARAM_TO, Long.MAX_VALUE));
+		return cursor;
+	    }
+
+	    case RATES_STATS: {
+		final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		final RateTable table = getRateTable();
+		final long from =
+			getTimeParameter(uri, RateStats.PARAM_FROM, Long.MIN_VALUE);
+		final long to =
+			getTimeParameter(uri, RateStats.PARAM_TO, Long.MAX_VALUE);
+
+		final MatrixCursor cursor =
+			new MatrixCursor(Query.STATS_PROJECTION, table.size());
+		for (int i = 0; i < table.size(); i++) {
+		    addStatsRow(cursor, db, table.getCurrency(i), from, to);
+		}
+		return cursor;
+	    }
+
+	    case HISTORY:
+	    case HISTORY_ID: {
+		if (selection != null) {
+		    throw new IllegalArgumentException("history is selected "
+			    + "by currency and time range parameters: " + uri);
+		}
+
+		final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+		final List<String> currencies;
+		if (sUriMatcher.match(uri) == HISTORY) {
+		    currencies = RateHistoryStore.getCurrencies(db);
+		    if (projection == null) {
+			projection = Query.HISTORY_ALL_PROJECTION;
+		    }
+		} else {
+		    currencies = Collections.singletonList(CurrencyCode.
+			    toUpperCase(uri.getPathSegments().get(1)));
+		    if (projection == null) {
+			projection = Query.HISTORY_PROJECTION;
+		    }
+		}
+
+		return queryHistory(db, currencies, projection,
+			isDescending(sortOrder),
+			getTimeParameter(uri, RateHistory.PARAM_FROM, Long.MIN_VALUE),
+			getTimeParameter(uri, RateHistory.PARAM_TO, Long.MAX_VALUE));
+	    }
+
 	    default:
 		throw new IllegalArgumentException("unsupported uri: " + uri);
 	}
 
 
     }
-    
-    
+
+    /**
+     * Reads history of currencies within time range, one currency after 
+     * another, merging rows and blocks of each.
+     * 
+     * @param db
+     * @param currencies
+     * @param projection columns, any of currency, update time and value
+     * @param descending true to return latest samples first
+     * @param from start of range, inclusive
+     * @param to end of range, exclusive
+     * @return
+     */
+    private static Cursor queryHistory(SQLiteDatabase db,
+	    List<String> currencies, String[] projection, boolean descending,
+	    long from, long to) {
+
+	final int[] columns = new int[projection.length];
+	for (int i = 0; i < projection.length; i++) {
+	    columns[i] = Arrays.asList(Query.HISTORY_ALL_PROJECTION).
+		    indexOf(projection[i]);
+	    if (columns[i] == -1) {
+		throw new IllegalArgumentException(
+			"unsupported history column: " + projection[i]);
+	    }
+	}
+
+	final MatrixCursor cursor = new MatrixCursor(projection);
+	final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+
+	for (String currency : currencies) {
+
+	    final RateHistoryStore.Series series =
+		    RateHistoryStore.query(db, currency, from, to);
+	    try {
+		while (series.next()) {
+		    final Object[] row = new Object[columns.length];
+		    for (int i = 0; i < columns.length; i++) {
+			switch (columns[i]) {
+			    case 0:
+				row[i] = currency;
+				break;
+			    case 1:
+				row[i] = series.getTime();
+				break;
+			    default:
+				row[i] = series.getValue();
+			}
+		    }
+		    rows.add(row);
+		}
+	    } finally {
+		series.close();
+	    }
+
+	    if (descending) {
+		Collections.reverse(rows);
+	    }
+	    for (Object[] row : rows) {
+		cursor.addRow(row);
+	    }
+	    rows.clear();
+
+	}
+
+	return cursor;
+
+    }
+
+    /**
+     * Returns true if history is sorted latest first. History is sorted 
+     * only by update time, within each currency.
+     * 
+     * @param sortOrder
+     * @return
+     */
+    private static boolean isDescending(String sortOrder) {
+
+	if (sortOrder == null || sortOrder.trim().length() == 0) {
+	    return false;
+	}
+	final String[] terms = sortOrder.trim().split("\\s+");
+	if (terms.length <= 2 && RateHistory.RATE_UPDATED.equals(terms[0])) {
+	    if (terms.length == 1 || "asc".equalsIgnoreCase(terms[1])) {
+		return false;
+	    }
+	    if ("desc".equalsIgnoreCase(terms[1])) {
+		return true;
+	    }
+	}
+	throw new IllegalArgumentException("unsupported history order: "
+		+ sortOrder);
+
+    }
+
+    /**
+     * Converts amount with the rates in effect at given time, read from the
+     * history table.
+     * 
+     * @param fromCurrency
+     * @param toCurrency
+     * @param amount
+     * @param asOf
+     * @return
+     */
+    private Cursor queryConversionAsOf(String fromCurrency,
+	    String toCurrency, double amount, long asOf) {
+
+	if (ConversionRate.ALL_CURRENCIES.equals(toCurrency)) {
+	    throw new IllegalArgumentException(
+		    "as-of conversion to all currencies not supported");
+	}
+
+	final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+	final double fromRate = RateHistoryStore.rateAsOf(db,
+		CurrencyCode.toUpperCase(fromCurrency), asOf);
+	final double toRate = RateHistoryStore.rateAsOf(db,
+		CurrencyCode.toUpperCase(toCurrency), asOf);
+
+	final RowCursor cursor = mRowCursors.obtain(Query.CONVERSION_PROJECTION);
+	if (!Double.isNaN(fromRate) && !Double.isNaN(toRate)) {
+	    cursor.addRow().setDouble(0, amount * toRate / fromRate);
+	}
+	return cursor;
+
+    }
+
+    /**
+     * Reads rate of currency from the rate table if it has every column of
+     * projection: currency, value and base. Values are relative to the base
+     * currency of the table.
+     * 
+     * @param currency upper case currency code
+     * @param projection
+     * @return cursor or null if rate must be read from database
+     */
+    private Cursor queryRateFromTable(String currency, String[] projection) {
+
+	// id, provider and update time are only stored in database
+	if (projection == null) {
+	    return null;
+	}
+	for (String column : projection) {
+	    if (!ConversionRateColumns.RATE_CURRENCY.equals(column)
+		    && !ConversionRateColumns.RATE_VALUE.equals(column)
+		    && !ConversionRateColumns.RATE_BASE.equals(column)) {
+		return null;
+	    }
+	}
+
+	final int code = CurrencyCode.pack(currency);
+	if (code == CurrencyCode.INVALID) {
+	    // such currencies are stored but have no ordinal
+	    return null;
+	}
+
+	final RateTable table = getRateTable();
+	final int ordinal = table.ordinalOf(code);
+	final RowCursor cursor = mRowCursors.obtain(projection);
+	if (ordinal == RateTable.NO_CURRENCY) {
+	    return cursor;
+	}
+
+	cursor.addRow();
+	for (int i = 0; i < projection.length; i++) {
+	    if (ConversionRateColumns.RATE_CURRENCY.equals(projection[i])) {
+		cursor.setString(i, table.getCurrency(ordinal));
+	    } else if (ConversionRateColumns.RATE_VALUE.equals(projection[i])) {
+		cursor.setDouble(i, table.getRate(ordinal));
+	    } else {
+		cursor.setString(i, table.getBaseCurrency());
+	    }
+	}
+	return cursor;
+
+    }
+
+    /**
+     * Converts amount from given currency into every known currency with a
+     * single pass over the rate table.
+     * 
+     * @param fromCurrency
+     * @param amount
+     * @return cursor with a row per target currency
+     */
+    private Cursor queryConversionToAll(String fromCurrency, double amount) {
+
+	final RateTable table = getRateTable();
+	final int from = table.ordinalOf(fromCurrency);
+
+	if (from == RateTable.NO_CURRENCY) {
+	    return new MatrixCursor(Query.CONVERSION_ALL_PROJECTION, 0);
+	}
+
+	final int count = table.size();
+	final MatrixCursor cursor =
+		new MatrixCursor(Query.CONVERSION_ALL_PROJECTION, count);
+	for (int to = 0; to < count; to++) {
+	    cursor.addRow(new Object[]{
+			table.getCurrency(to),
+			table.convert(from, to, amount)});
+	}
+	return cursor;
+
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+
+	if (ConversionRate.METHOD_CONVERT.equals(method)) {
+	    return callConvert(extras);
+	} else if (ConversionRate.METHOD_CONVERT_MINOR_UNITS.equals(method)) {
+	    return callConvertMinorUnits(extras);
+	} else if (ConversionRate.METHOD_WRITE_RATES.equals(method)) {
+	    return callWriteRates(extras);
+	}
+
+	return super.call(method, arg, extras);
+
+    }
+
+    /**
+     * Writes rates inserted into the rates Uri in a single transaction and
+     * notifies observers once. Other Uris are inserted one by one.
+     * 
+     * @param uri
+     * @param values
+     * @return number of rates written
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+	if (sUriMatcher.match(uri) != RATES) {
+	    return super.bulkInsert(uri, values);
+	}
+
+	final int count = values.length;
+	final String[] currencies = new String[count];
+	final String[] providers = new String[count];
+	final long[] updated = new long[count];
+	final double[] rates = new double[count];
+
+	for (int i = 0; i < count; i++) {
+	    final ContentValues rate = values[i];
+	    final Long updatedValue =
+		    rate.getAsLong(ConversionRateColumns.RATE_UPDATED);
+	    final Double rateValue =
+		    rate.getAsDouble(ConversionRateColumns.RATE_VALUE);
+	    currencies[i] = rate.getAsString(ConversionRateColumns.RATE_CURRENCY);
+	    providers[i] = rate.getAsString(ConversionRateColumns.RATE_PROVIDER);
+	    if (updatedValue == null || rateValue == null) {
+		throw new IllegalArgumentException("incomplete rate: " + rate);
+	    }
+	    updated[i] = updatedValue;
+	    rates[i] = rateValue;
+	}
+
+	return writeRates(null, currencies, providers, updated, rates, null);
+
+    }
+
+    private Bundle callWriteRates(Bundle extras) {
+
+	final String[] currencies =
+		extras.getStringArray(ConversionRate.EXTRA_CURRENCIES);
+	final String[] providers =
+		extras.getStringArray(ConversionRate.EXTRA_PROVIDERS);
+	final long[] updated =
+		extras.getLongArray(ConversionRate.EXTRA_UPDATED_TIMES);
+	final double[] rates = extras.getDoubleArray(ConversionRate.EXTRA_RATES);
+
+	if (currencies == null || providers == null || updated == null
+		|| rates == null) {
+	    throw new IllegalArgumentException("no rates");
+	}
+	if (providers.length != currencies.length
+		|| updated.length != currencies.length
+		|| rates.length != currencies.length) {
+	    throw new IllegalArgumentException("rate arrays differ in length");
+	}
+
+	final Bundle result = new Bundle(1);
+	result.putInt(ConversionRate.EXTRA_ROWS_WRITTEN,
+		writeRates(extras.getString(ConversionRate.EXTRA_BASE_CURRENCY),
+		currencies, providers, updated, rates, extras.getStringArray(
+		ConversionRate.EXTRA_DELETED_CURRENCIES)));
+	return result;
+
+    }
+
+    /**
+     * Inserts or updates rates and records them into history in a single
+     * transaction, binding each rate into statements compiled once.
+     * Observers are notified once, of all currencies written or deleted.
+     * 
+     * @param baseCurrency currency rates are relative to, null if not known
+     * @param deleted currencies of rates to delete, may be null
+     * @return number of rates written and deleted
+     */
+    private int writeRates(String baseCurrency, String[] currencies,
+	    String[] providers, long[] updated, double[] rates,
+	    String[] deleted) {
+
+	for (int i = 0; i < currencies.length; i++) {
+	    if (currencies[i] == null || providers[i] == null) {
+		throw new IllegalArgumentException("incomplete rate at " + i);
+	    }
+	}
+
+	final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+	if (baseCurrency != null) {
+	    baseCurrency = CurrencyCode.toUpperCase(baseCurrency);
+	}
+	final long start = SystemClock.uptimeMillis();
+	final RateWriter writer = new RateWriter(db, baseCurrency);
+	final Changes changes = new Changes();
+	int rowsWritten = currencies.length;
+	db.beginTransaction();
+	try {
+	    for (int i = 0; i < currencies.length; i++) {
+		final String currency = CurrencyCode.toUpperCase(currencies[i]);
+		writer.write(currency, providers[i], updated[i], rates[i]);
+		changes.addRate(currency);
+	    }
+	    if (deleted != null) {
+		for (String currency : deleted) {
+		    currency = CurrencyCode.toUpperCase(currency);
+		    if (db.delete(Tables.CURRENCY_RATE,
+			    ConversionRateColumns.RATE_CURRENCY + "=?",
+			    new String[]{currency}) > 0) {
+			changes.addRate(currency);
+			rowsWritten++;
+		    }
+		}
+	    }
+	    db.setTransactionSuccessful();
+	} finally {
+	    db.endTransaction();
+	    writer.close();
+	}
+
+	if (Log.isLoggable(TAG, Log.DEBUG)) {
+	    Log.d(TAG, rowsWritten + " rates written in "
+		    + (SystemClock.uptimeMillis() - start) + " ms");
+	}
+
+	if (baseCurrency != null) {
+	    mBaseCurrency = baseCurrency;
+	}
+	changes.mHistory = currencies.length > 0;
+	if (changes.mHistory) {
+	    RateHistoryStore.compact(db);
+	}
+	notifyChanged(changes);
+
+	// reload rates now rather than on the next conversion, this also
+	// writes the snapshot for the next cold start
+	getRateTable();
+	return rowsWritten;
+
+    }
+
+    /**
+     * Converts all amounts of the batch against the same rate table.
+     * 
+     * @param extras
+     * @return
+     */
+    private Bundle callConvert(Bundle extras) {
+
+	final double[] amounts = extras.getDoubleArray(
+		ConversionRate.EXTRA_AMOUNTS);
+	if (amounts == null) {
+	    throw new IllegalArgumentException("no amounts");
+	}
+
+	final int[] fromCodes = getCodes(extras, ConversionRate.EXTRA_FROM_CODES,
+		ConversionRate.EXTRA_FROM_CURRENCIES, amounts.length);
+	final int[] toCodes = getCodes(extras, ConversionRate.EXTRA_TO_CODES,
+		ConversionRate.EXTRA_TO_CURRENCIES, amounts.length);
+
+	final RateTable table = getRateTable();
+	final double[] results = new double[amounts.length];
+
+	for (int i = 0; i < amounts.length; i++) {
+	    final int from = table.ordinalOf(fromCodes[i]);
+	    final int to = table.ordinalOf(toCodes[i]);
+	    results[i] = from != RateTable.NO_CURRENCY
+		    && to != RateTable.NO_CURRENCY
+		    ? table.convert(from, to, amounts[i])
+		    : Double.NaN;
+	}
+
+	final Bundle result = new Bundle(1);
+	result.putDoubleArray(ConversionRate.EXTRA_CONVERTED_AMOUNTS, results);
+	return result;
+
+    }
+
+    /**
+     * Converts all minor unit amounts of the batch against the same rate
+     * table.
+     * 
+     * @param extras
+     * @return
+     */
+    private Bundle callConvertMinorUnits(Bundle extras) {
+
+	final long[] amounts = extras.getLongArray(
+		ConversionRate.EXTRA_MINOR_AMOUNTS);
+	if (amounts == null) {
+	    throw new IllegalArgumentException("no amounts");
+	}
+
+	final int[] fromCodes = getCodes(extras, ConversionRate.EXTRA_FROM_CODES,
+		ConversionRate.EXTRA_FROM_CURRENCIES, amounts.length);
+	final int[] toCodes = getCodes(extras, ConversionRate.EXTRA_TO_CODES,
+		ConversionRate.EXTRA_TO_CURRENCIES, amounts.length);
+
+	final RateTable table = getRateTable();
+	final long[] results = new long[amounts.length];
+
+	for (int i = 0; i < amounts.length; i++) {
+	    results[i] = convertMinorUnits(table,
+		    table.ordinalOf(fromCodes[i]),
+		    table.ordinalOf(toCodes[i]),
+		    amounts[i]);
+	}
+
+	final Bundle result = new Bundle(1);
+	result.putLongArray(ConversionRate.EXTRA_CONVERTED_MINOR_AMOUNTS,
+		results);
+	return result;
+
+    }
+
+    /**
+     * Returns packed currency codes of a call, either as passed by the
+     * caller or packed from 3-letter codes.
+     * 
+     * @param extras
+     * @param codesKey key of int array of packed codes
+     * @param currenciesKey key of String array of 3-letter codes
+     * @param length number of amounts in the call
+     * @return
+     */
+    private static int[] getCodes(Bundle extras, String codesKey,
+	    String currenciesKey, int length) {
+
+	int[] codes = extras.getIntArray(codesKey);
+
+	if (codes == null) {
+	    final String[] currencies = extras.getStringArray(currenciesKey);
+	    if (currencies != null) {
+		codes = new int[currencies.length];
+		for (int i = 0; i < currencies.length; i++) {
+		    codes[i] = CurrencyCode.pack(currencies[i]);
+		}
+	    }
+	}
+
+	if (codes == null || codes.length != length) {
+	    throw new IllegalArgumentException(
+		    "currencies and amounts must be arrays of same length");
+	}
+
+	return codes;
+
+    }
+
+    /**
+     * Converts amount in minor units with the fixed-point converter of the
+     * table.
+     * 
+     * @return converted amount or NO_AMOUNT if either currency is not
+     * available
+     */
+    private static long convertMinorUnits(RateTable table, int from, int to,
+	    long amount) {
+
+	final MinorUnitConverter converter = table.getMinorUnitConverter();
+
+	if (from == RateTable.NO_CURRENCY || to == RateTable.NO_CURRENCY
+		|| !converter.isAvailable(from) || !converter.isAvailable(to)) {
+	    return ConversionRate.NO_AMOUNT;
+	}
+
+	try {
+	    return converter.convert(from, to, amount);
+	} catch (ArithmeticException e) {
+	    // only few exception types make it across process boundary
+	    throw new IllegalArgumentException(
+		    "amount out of range: " + amount, e);
+	}
+
+    }
+
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final long start = SystemClock.uptimeMillis();
+        final ContentProviderResult[] results;
+        // operations record their changes, observers hear of them once
+        final Changes changes = new Changes();
+        mBatchChanges.set(changes);
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
-            final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+            results = new ContentProviderResult[numOperations];
             for (int i = 0; i < numOperations; i++) {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
-            return results;
         } finally {
             db.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, operations.size() + " operations applied in "
+                    + (SystemClock.uptimeMillis() - start) + " ms");
         }
+
+        // history added by the batch is compacted once, after it
+        if (changes.mHistory) {
+            RateHistoryStore.compact(db);
+        }
+
+        // reload rates now rather than on the next conversion, batches
+        // that leave rates alone keep the table and its snapshot
+        if (changes.mRates) {
+            invalidateRateTable();
+            getRateTable();
+        }
+        sendNotifications(changes);
+        return results;
+    }
+
+    /**
+     * Returns current in-memory rate table, loading one from database if
+     * needed.
+     * 
+     * @return
+     */
+    private RateTable getRateTable() {
+
+	RateTable table = mRateTable;
+	if (table != null) {
+	    return table;
+	}
+
+	final int generation;
+	final RateTable previous;
+	synchronized (mRateTableLock) {
+	    generation = mRateTableGeneration;
+	    previous = mPreviousRateTable;
+	}
+
+	final long start = SystemClock.uptimeMillis();
+
+	// first table of the process comes from the snapshot if there is one,
+	// the database is not opened for it
+	if (previous == null) {
+	    table = readSnapshot();
+	    final String baseCurrency = mBaseCurrency;
+	    if (table != null && baseCurrency != null
+		    && !baseCurrency.equals(table.getBaseCurrency())) {
+		table = null;
+	    }
+	}
+	final boolean fromSnapshot = table != null;
+	if (fromSnapshot) {
+	    if (mBaseCurrency == null) {
+		mBaseCurrency = table.getBaseCurrency();
+	    }
+	} else {
+	    table = RateTable.load(mDbHelper.getReadableDatabase(),
+		    getBaseCurrency(), previous);
+	}
+
+	if (Log.isLoggable(TAG, Log.DEBUG)) {
+	    Log.d(TAG, "rates loaded from " + (fromSnapshot ? "snapshot" 
+		    : "database") + " in " + (SystemClock.uptimeMillis() - start)
+		    + " ms");
+	}
+
+	synchronized (mRateTableLock) {
+	    // do not publish if rates were written while loading
+	    if (generation == mRateTableGeneration) {
+		mRateTable = table;
+		mPreviousRateTable = table;
+		if (!fromSnapshot) {
+		    // under lock so that a write cannot be followed by a 
+		    // snapshot of the rates before it
+		    writeSnapshot(table);
+		}
+	    }
+	}
+
+	return table;
+
+    }
+
+    /**
+     * Drops the in-memory rate table after rates have been written.
+     */
+    private void invalidateRateTable() {
+
+	synchronized (mRateTableLock) {
+	    mRateTableGeneration++;
+	    mRateTable = null;
+	    RateSnapshot.delete(mSnapshotFile);
+	}
+
+    }
+
+    /**
+     * Notifies observers of a change made through given Uri.
+     * 
+     * @param uri
+     * @param history true if rate changes were recorded into history
+     */
+    private void notifyChanged(Uri uri, boolean history) {
+
+	final Changes changes = new Changes();
+	switch (sUriMatcher.match(uri)) {
+	    case RATES:
+		changes.addRate(null);
+		changes.mHistory = history;
+		break;
+	    case RATES_ID:
+		changes.addRate(
+			CurrencyCode.toUpperCase(uri.getPathSegments().get(1)));
+		changes.mHistory = history;
+		break;
+	    default:
+		changes.mHistory = true;
+		break;
+	}
+	notifyChanged(changes);
+
+    }
+
+    /**
+     * Drops in-memory rates if they changed and notifies observers of 
+     * changes, or holds the notifications back until the end of the batch
+     * being applied.
+     * 
+     * @param changes
+     */
+    private void notifyChanged(Changes changes) {
+
+	if (changes.mRates) {
+	    invalidateRateTable();
+	}
+
+	final Changes batchChanges = mBatchChanges.get();
+	if (batchChanges != null) {
+	    batchChanges.addAll(changes);
+	} else {
+	    sendNotifications(changes);
+	}
+
+    }
+
+    private void sendNotifications(Changes changes) {
+
+	final ContentResolver resolver = getContext().getContentResolver();
+
+	if (changes.mRates) {
+	    Uri uri = ConversionRate.CONTENT_URI;
+	    if (!changes.mAllRates) {
+		uri = uri.buildUpon().appendQueryParameter(
+			ConversionRate.PARAM_CHANGED,
+			TextUtils.join(",", changes.mCurrencies)).build();
+	    }
+	    resolver.notifyChange(uri, null);
+	}
+
+	if (changes.mHistory) {
+	    resolver.notifyChange(RateHistory.CONTENT_URI, null);
+	}
+
+    }
+
+    private RateTable readSnapshot() {
+
+	try {
+	    return RateSnapshot.read(mSnapshotFile);
+	} catch (IOException e) {
+	    Log.w(TAG, "failed to read rate snapshot", e);
+	    return null;
+	}
+
+    }
+
+    private void writeSnapshot(RateTable table) {
+
+	try {
+	    RateSnapshot.write(mSnapshotFile, table, System.currentTimeMillis());
+	} catch (IOException e) {
+	    // conversions still work, a cold start just reads the database
+	    Log.w(TAG, "failed to write rate snapshot", e);
+	    RateSnapshot.delete(mSnapshotFile);
+	}
+
+    }
+
+    private static long parseTime(String time) {
+
+	try {
+	    return Long.parseLong(time);
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("bad time: " + time, e);
+	}
+
+    }
+
+    /**
+     * Records rate into history and daily stats.
+     * 
+     * @param db
+     * @param values currency, provider, updated and value of the rate
+     */
+    private static void recordHistory(SQLiteDatabase db, ContentValues values) {
+
+	final String currency =
+		values.getAsString(ConversionRateColumns.RATE_CURRENCY);
+	final long updated = values.getAsLong(ConversionRateColumns.RATE_UPDATED);
+	if (RateHistoryStore.isCompacted(db, currency, updated)) {
+	    return;
+	}
+
+	// a sample already in history must not be counted twice
+	if (db.insertWithOnConflict(Tables.CURRENCY_RATE_HISTORY, null,
+		values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+	    RateStatsStore.record(db, currency, updated,
+		    values.getAsDouble(ConversionRateColumns.RATE_VALUE));
+	}
+
+    }
+
+    /**
+     * Reads stored rate of currency.
+     * 
+     * @param db
+     * @param currency
+     * @return values of the rate or null if there is none
+     */
+    private static ContentValues readRate(SQLiteDatabase db, String currency) {
+
+	final Cursor cursor = db.query(Tables.CURRENCY_RATE,
+		Query.RATE_PROJECTION,
+		ConversionRateColumns.RATE_CURRENCY + "=?",
+		new String[]{currency}, null, null, null);
+	try {
+	    if (!cursor.moveToFirst()) {
+		return null;
+	    }
+	    final ContentValues values = new ContentValues(4);
+	    values.put(ConversionRateColumns.RATE_CURRENCY,
+		    cursor.getString(0));
+	    values.put(ConversionRateColumns.RATE_PROVIDER,
+		    cursor.getString(1));
+	    values.put(ConversionRateColumns.RATE_UPDATED, cursor.getLong(2));
+	    values.put(ConversionRateColumns.RATE_VALUE, cursor.getDouble(3));
+	    return values;
+	} finally {
+	    cursor.close();
+	}
+
+    }
+
+    /**
+     * Adds row of stats of currency within time window, if it has samples
+     * within the window.
+     */
+    private static void addStatsRow(MatrixCursor cursor, SQLiteDatabase db,
+	    String currency, long from, long to) {
+
+	final RateStatsStore.Stats stats =
+		RateStatsStore.query(db, currency, from, to);
+	if (stats.count > 0) {
+	    cursor.addRow(new Object[]{currency, stats.count, stats.min,
+			stats.max, stats.getAverage(), stats.last,
+			stats.lastUpdated});
+	}
+
+    }
+
+    private static long getTimeParameter(Uri uri, String name,
+	    long defaultValue) {
+
+	final String value = uri.getQueryParameter(name);
+	return value != null ? parseTime(value) : defaultValue;
+
+    }
+
+    /**
+     * Rates and history changed by a write or a batch of them.
+     */
+    private static final class Changes {
+
+	boolean mRates;
+
+	/**
+	 * Set when changed currencies are not known, any rate may have changed.
+	 */
+	boolean mAllRates;
+
+	final TreeSet<String> mCurrencies = new TreeSet<String>();
+
+	boolean mHistory;
+
+	/**
+	 * @param currency changed currency or null if unknown
+	 */
+	void addRate(String currency) {
+
+	    mRates = true;
+	    if (currency == null) {
+		mAllRates = true;
+	    } else {
+		mCurrencies.add(currency);
+	    }
+
+	}
+
+	void addAll(Changes changes) {
+
+	    mRates |= changes.mRates;
+	    mAllRates |= changes.mAllRates;
+	    mCurrencies.addAll(changes.mCurrencies);
+	    mHistory |= changes.mHistory;
+
+	}
+
     }
 
+    private static long parseMinorAmount(String amount) {
+
+	try {
+	    return Long.parseLong(amount);
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("bad amount: " + amount, e);
+	}
+
+    }
+
+    private static double parseAmount(String amount) {
+
+	try {
+	    return Double.parseDouble(amount);
+	} catch (NumberFormatException e) {
+	    throw new IllegalArgumentException("bad amount: " + amount, e);
+	}
 
+    }
+
+
+    /**
+     * Returns currency the stored rates are relative to. Taken from the 
+     * rates themselves and cached, the SPI factory is only asked when the
+     * rates were written without one.
+     * 
+     * @return
+     */
     private String getBaseCurrency() {
-	// TODO
+
+	String baseCurrency = mBaseCurrency;
+	if (baseCurrency != null) {
+	    return baseCurrency;
+	}
+
+	final Cursor cursor = mDbHelper.getReadableDatabase().query(
+		Tables.CURRENCY_RATE,
+		new String[]{ConversionRateColumns.RATE_BASE},
+		ConversionRateColumns.RATE_BASE + " not null", null, null, null,
+		null, "1");
 	try {
-	    return RatesSpiFactory.getInstance(getContext()).getBaseCurrency();
-	} catch (Exception e) {
-	    throw new IllegalStateException(e);
+	    if (cursor.moveToFirst()) {
+		baseCurrency = cursor.getString(0);
+	    }
+	} finally {
+	    cursor.close();
 	}
+
+	if (baseCurrency == null) {
+	    try {
+		baseCurrency =
+			RatesSpiFactory.getInstance(getContext()).getBaseCurrency();
+	    } catch (Exception e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+
+	mBaseCurrency = baseCurrency;
+	return baseCurrency;
+
     }
 
     @Override
@@ -210,8 +1332,19 @@ public class CurrencyProvider extends ContentProvider {
 	    case RATES:
 		return ConversionRate.CONTENT_TYPE;
 	    case RATES_ID:
-	    case RATES_CONVERSION:
+	    case RATES_CONVERSION_MINOR:
 		return ConversionRate.CONTENT_ITEM_TYPE;
+	    case HISTORY:
+	    case HISTORY_ID:
+		return RateHistory.CONTENT_TYPE;
+	    case RATES_STATS:
+	    case RATES_ID_STATS:
+		return RateStats.CONTENT_TYPE;
+	    case RATES_CONVERSION:
+		return ConversionRate.ALL_CURRENCIES.equals(
+			uri.getPathSegments().get(2))
+			? ConversionRate.CONTENT_TYPE
+			: ConversionRate.CONTENT_ITEM_TYPE;
 	    default:
 		throw new IllegalArgumentException("unknown uri: " + uri);
 	}
@@ -229,7 +1362,16 @@ public class CurrencyProvider extends ContentProvider {
 	    case RATES_ID: {
 		final List<String> segments = uri.getPathSegments();
 		return builder.table(Tables.CURRENCY_RATE).whereEq(
-			BaseColumns._ID, segments.get(1));
+			ConversionRateColumns.RATE_CURRENCY,
+			CurrencyCode.toUpperCase(segments.get(1)));
+	    }
+	    case HISTORY:
+		return builder.table(Tables.CURRENCY_RATE_HISTORY);
+	    case HISTORY_ID: {
+		final List<String> segments = uri.getPathSegments();
+		return builder.table(Tables.CURRENCY_RATE_HISTORY).whereEq(
+			RateHistory.RATE_CURRENCY,
+			CurrencyCode.toUpperCase(segments.get(1)));
 	    }
 	    default:
 		throw new IllegalArgumentException("unsupported uri: " + uri);
@@ -250,10 +1392,21 @@ public class CurrencyProvider extends ContentProvider {
 
 	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
 		"rates", RATES);
+	// exact segments must be added before wildcards at the same level
+	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
+		"rates/stats", RATES_STATS);
 	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
 		"rates/*", RATES_ID);
+	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
+		"rates/*/stats", RATES_ID_STATS);
 	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
 		"rates/*/*/*", RATES_CONVERSION);
+	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
+		"rates/*/*/*/minor", RATES_CONVERSION_MINOR);
+	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
+		"history", HISTORY);
+	uriMatcher.addURI(CurrencyContract.CONTENT_AUTHORITY,
+		"history/*", HISTORY_ID);
 
 	return uriMatcher;
 
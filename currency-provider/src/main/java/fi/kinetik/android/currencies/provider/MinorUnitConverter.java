@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import java.util.Currency;
+
+/**
+ * Fixed-point conversion engine that works on amounts in minor units (e.g.
+ * cents) of each currency. Rates are kept as integers scaled by
+ * {@link #RATE_SCALE} and results are rounded half away from zero to the
+ * minor unit of the target currency. Conversions do not allocate.
+ *
+ * Ordinals are the same as in the {@link RateTable} the converter was
+ * created from.
+ */
+final class MinorUnitConverter {
+
+    /**
+     * Rates are stored as <code>round(rate * RATE_SCALE)</code>.
+     */
+    static final long RATE_SCALE = 1000000000000L;
+
+    /**
+     * Minor unit digits used for currencies unknown to java.util.Currency.
+     */
+    private static final int DEFAULT_DIGITS = 2;
+
+    private static final long[] POWERS_OF_TEN = new long[]{
+	1L, 10L, 100L, 1000L, 10000L
+    };
+
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private final long[] mRates;
+
+    private final int[] mDigits;
+
+    /**
+     * Creates converter from double rates, indexed by currency ordinal.
+     *
+     * @param currencies
+     * @param rates
+     */
+    MinorUnitConverter(String[] currencies, double[] rates) {
+
+	final int count = currencies.length;
+	mRates = new long[count];
+	mDigits = new int[count];
+
+	for (int i = 0; i < count; i++) {
+	    final double scaled = rates[i] * RATE_SCALE;
+	    // rates that cannot be represented are left zero, i.e. unavailable
+	    if (scaled >= 1 && scaled < Long.MAX_VALUE) {
+		mRates[i] = Math.round(scaled);
+	    }
+	    mDigits[i] = minorUnitDigits(currencies[i]);
+	}
+
+    }
+
+    /**
+     * Returns true if currency with ordinal can be converted in minor units.
+     *
+     * @param ordinal
+     * @return
+     */
+    boolean isAvailable(int ordinal) {
+	return mRates[ordinal] != 0;
+    }
+
+    /**
+     * Returns the number of decimal digits in the minor unit of a currency.
+     *
+     * @param ordinal
+     * @return
+     */
+    int getDigits(int ordinal) {
+	return mDigits[ordinal];
+    }
+
+    /**
+     * Converts amount in minor units of origin currency into minor units of
+     * the target currency.
+     *
+     * @param from ordinal of the origin currency
+     * @param to ordinal of the target currency
+     * @param amount amount in minor units of the origin currency
+     * @return amount in minor units of the target currency
+     * @throws ArithmeticException if the result does not fit into long
+     */
+    long convert(int from, int to, long amount) {
+
+	if (amount == Long.MIN_VALUE) {
+	    throw new ArithmeticException("amount too large: " + amount);
+	}
+
+	final boolean negative = amount < 0;
+	final long a = negative ? -amount : amount;
+	long m = 1;
+	long d = 1;
+
+	// scaled within the 128-bit product, amounts that only overflow
+	// before dividing by the rate still convert
+	final int shift = mDigits[to] - mDigits[from];
+	if (shift > 0) {
+	    m = POWERS_OF_TEN[shift];
+	} else if (shift < 0) {
+	    d = POWERS_OF_TEN[-shift];
+	}
+
+	final long result = mulDiv(a, mRates[to], m, mRates[from], d);
+	return negative ? -result : result;
+
+    }
+
+    /**
+     * Computes <code>a * b / (c * d)</code> rounded half-up with 128-bit
+     * intermediate product. All arguments must be non-negative, c and d
+     * positive.
+     *
+     * @throws ArithmeticException if the result does not fit into long
+     */
+    static long mulDiv(long a, long b, long c, long d) {
+	return mulDiv(a, b, 1, c, d);
+    }
+
+    /**
+     * Computes <code>a * b * m / (c * d)</code> rounded half-up with
+     * 128-bit intermediate product. All arguments must be non-negative, m
+     * below 2^31, c and d positive.
+     *
+     * @throws ArithmeticException if the result does not fit into long
+     */
+    static long mulDiv(long a, long b, long m, long c, long d) {
+
+	// 128-bit product of a and b as (hi, lo)
+	final long aHi = a >>> 32;
+	final long aLo = a & LOW_MASK;
+	final long bHi = b >>> 32;
+	final long bLo = b & LOW_MASK;
+
+	final long loLo = aLo * bLo;
+	final long hiLo = aHi * bLo;
+	final long loHi = aLo * bHi;
+	final long cross = (loLo >>> 32) + (hiLo & LOW_MASK) + (loHi & LOW_MASK);
+
+	long lo = (cross << 32) | (loLo & LOW_MASK);
+	long hi = aHi * bHi + (hiLo >>> 32) + (loHi >>> 32)
+		+ (cross >>> 32);
+
+	// times m, a high word past 63 bits is above any c
+	if (m != 1) {
+	    final long lowM = (lo & LOW_MASK) * m;
+	    final long highM = (lo >>> 32) * m + (lowM >>> 32);
+	    lo = (highM << 32) | (lowM & LOW_MASK);
+	    final long carry = highM >>> 32;
+	    if (hi > (Long.MAX_VALUE - carry) / m) {
+		throw new ArithmeticException("overflow");
+	    }
+	    hi = hi * m + carry;
+	}
+
+	// divide (hi, lo) by c
+	long q;
+	long r;
+	if (hi == 0 && lo >= 0) {
+	    q = lo / c;
+	    r = lo % c;
+	} else {
+	    if (hi >= c) {
+		throw new ArithmeticException("overflow");
+	    }
+	    q = 0;
+	    r = hi;
+	    for (int i = 63; i >= 0; i--) {
+		r = (r << 1) | ((lo >>> i) & 1);
+		q <<= 1;
+		// r is unsigned here, negative means above any c
+		if (r < 0 || r >= c) {
+		    r -= c;
+		    q |= 1;
+		}
+	    }
+	    if (q < 0) {
+		throw new ArithmeticException("overflow");
+	    }
+	}
+
+	// divide by d and round half-up using both remainders
+	final long result = q / d;
+	final long k = d - 2 * (q % d);
+	final boolean roundUp = k <= 0 || (k == 1 && r >= c - r);
+	return roundUp ? result + 1 : result;
+
+    }
+
+    private static int minorUnitDigits(String currency) {
+
+	try {
+	    final int digits =
+		    Currency.getInstance(currency).getDefaultFractionDigits();
+	    // pseudo currencies such as gold report -1
+	    return digits >= 0 && digits < POWERS_OF_TEN.length
+		    ? digits : 0;
+	} catch (IllegalArgumentException e) {
+	    return DEFAULT_DIGITS;
+	}
+
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+/**
+ * Bounded pool of reusable objects, safe to use from several threads. 
+ * Objects are created when the pool is empty and dropped when it is full.
+ * An object released twice is kept once.
+ *
+ * @param <T>
+ */
+abstract class ObjectPool<T> {
+
+    private final Object[] mFree;
+
+    private int mSize;
+
+    /**
+     * @param capacity number of released objects kept for reuse
+     */
+    ObjectPool(int capacity) {
+	mFree = new Object[capacity];
+    }
+
+    /**
+     * Creates an object when there is none to reuse.
+     *
+     * @return
+     */
+    protected abstract T create();
+
+    /**
+     * Returns a released object or a new one.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    T obtain() {
+
+	synchronized (this) {
+	    if (mSize > 0) {
+		final T object = (T) mFree[--mSize];
+		mFree[mSize] = null;
+		return object;
+	    }
+	}
+	return create();
+
+    }
+
+    /**
+     * Returns object to the pool, it must not be used afterwards.
+     *
+     * @param object
+     */
+    synchronized void release(T object) {
+
+	for (int i = 0; i < mSize; i++) {
+	    if (mFree[i] == object) {
+		return;
+	    }
+	}
+	if (mSize < mFree.length) {
+	    mFree[mSize++] = object;
+	}
+
+    }
+
+    /**
+     * Returns number of released objects kept.
+     *
+     * @return
+     */
+    synchronized int size() {
+	return mSize;
+    }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRateColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.RateBlockColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.Tables;
+import java.util.ArrayList;
+
+/**
+ * Rate history storage. New samples are written as rows into the history
+ * table and compacted, oldest first, into encoded blocks once a currency
+ * has enough of them. Reads merge both so callers see a single series.
+ *
+ * @see RateSeriesEncoder
+ */
+final class RateHistoryStore {
+
+    /**
+     * Number of samples encoded into a block.
+     */
+    static final int BLOCK_SIZE = 128;
+
+    /**
+     * Rows are compacted once a currency has this many, leaving at least
+     * BLOCK_SIZE latest samples as rows for index seeks.
+     */
+    private static final int COMPACT_THRESHOLD = 2 * BLOCK_SIZE;
+
+    interface Query {
+
+	String RATE_AS_OF_SQL =
+		"select " + ConversionRateColumns.RATE_VALUE
+		+ " from " + Tables.CURRENCY_RATE_HISTORY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + ConversionRateColumns.RATE_UPDATED + "<=?"
+		+ " order by " + ConversionRateColumns.RATE_UPDATED + " desc"
+		+ " limit 1";
+
+	String BLOCK_AS_OF_SQL =
+		"select " + RateBlockColumns.BLOCK_COUNT + ","
+		+ RateBlockColumns.BLOCK_DATA
+		+ " from " + Tables.CURRENCY_RATE_BLOCK
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + RateBlockColumns.BLOCK_START + "<=?"
+		+ " order by " + RateBlockColumns.BLOCK_START + " desc"
+		+ " limit 1";
+
+	String BLOCK_RANGE_SQL =
+		"select " + RateBlockColumns.BLOCK_COUNT + ","
+		+ RateBlockColumns.BLOCK_DATA
+		+ " from " + Tables.CURRENCY_RATE_BLOCK
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + RateBlockColumns.BLOCK_END + ">=?"
+		+ " and " + RateBlockColumns.BLOCK_START + "<?"
+		+ " order by " + RateBlockColumns.BLOCK_START;
+
+	String ROW_RANGE_SQL =
+		"select " + ConversionRateColumns.RATE_UPDATED + ","
+		+ ConversionRateColumns.RATE_VALUE
+		+ " from " + Tables.CURRENCY_RATE_HISTORY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + ConversionRateColumns.RATE_UPDATED + ">=?"
+		+ " and " + ConversionRateColumns.RATE_UPDATED + "<?"
+		+ " order by " + ConversionRateColumns.RATE_UPDATED;
+
+	String COMPACT_CANDIDATES_SQL =
+		"select " + ConversionRateColumns.RATE_CURRENCY
+		+ " from " + Tables.CURRENCY_RATE_HISTORY
+		+ " group by " + ConversionRateColumns.RATE_CURRENCY
+		+ " having count(*)>=" + COMPACT_THRESHOLD;
+
+	String COMPACTED_SQL =
+		"select count(*) from " + Tables.CURRENCY_RATE_BLOCK
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + RateBlockColumns.BLOCK_END + ">=?";
+
+	String CURRENCIES_SQL =
+		"select " + ConversionRateColumns.RATE_CURRENCY
+		+ " from " + Tables.CURRENCY_RATE_HISTORY
+		+ " union select " + ConversionRateColumns.RATE_CURRENCY
+		+ " from " + Tables.CURRENCY_RATE_BLOCK
+		+ " order by 1";
+
+	String ROW_COUNT_SQL =
+		"select count(*) from " + Tables.CURRENCY_RATE_HISTORY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?";
+
+	String OLDEST_ROWS_SQL =
+		"select " + ConversionRateColumns.RATE_UPDATED + ","
+		+ ConversionRateColumns.RATE_VALUE
+		+ " from " + Tables.CURRENCY_RATE_HISTORY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " order by " + ConversionRateColumns.RATE_UPDATED
+		+ " limit " + BLOCK_SIZE;
+
+    }
+
+    private RateHistoryStore() {
+	// N/A
+    }
+
+    /**
+     * Returns the latest rate of currency at or before given time.
+     *
+     * @param db
+     * @param currency
+     * @param time
+     * @return rate or NaN if there is no history before the time
+     */
+    static double rateAsOf(SQLiteDatabase db, String currency, long time) {
+
+	final String[] args = new String[]{currency, String.valueOf(time)};
+
+	// recent samples are rows, a single index seek
+	Cursor cursor = db.rawQuery(Query.RATE_AS_OF_SQL, args);
+	try {
+	    if (cursor.moveToFirst()) {
+		return cursor.getDouble(0);
+	    }
+	} finally {
+	    cursor.close();
+	}
+
+	// older ones are in the block starting before the time
+	cursor = db.rawQuery(Query.BLOCK_AS_OF_SQL, args);
+	try {
+	    double rate = Double.NaN;
+	    if (cursor.moveToFirst()) {
+		final RateSeriesDecoder decoder = new RateSeriesDecoder(
+			cursor.getBlob(1), cursor.getInt(0));
+		while (decoder.next() && decoder.getTime() <= time) {
+		    rate = decoder.getValue();
+		}
+	    }
+	    return rate;
+	} finally {
+	    cursor.close();
+	}
+
+    }
+
+    /**
+     * Opens a series of samples of currency within time range.
+     *
+     * @param db
+     * @param currency
+     * @param from start of range, inclusive
+     * @param to end of range, exclusive
+     * @return series that must be closed after use
+     */
+    static Series query(SQLiteDatabase db, String currency, long from,
+	    long to) {
+
+	final String[] args = new String[]{
+	    currency, String.valueOf(from), String.valueOf(to)};
+
+	return new Series(db.rawQuery(Query.BLOCK_RANGE_SQL, args),
+		db.rawQuery(Query.ROW_RANGE_SQL, args),
+		from, to);
+
+    }
+
+    /**
+     * Returns true if history of currency is compacted past given time.
+     * Blocks are never changed, samples at or before the end of the last
+     * block are not recorded: they would duplicate or shadow the samples
+     * of the block.
+     *
+     * @param db
+     * @param currency
+     * @param time
+     * @return
+     */
+    static boolean isCompacted(SQLiteDatabase db, String currency,
+	    long time) {
+
+	return DatabaseUtils.longForQuery(db, Query.COMPACTED_SQL,
+		new String[]{currency, String.valueOf(time)}) > 0;
+
+    }
+
+    /**
+     * Returns currencies that have history, in alphabetical order.
+     *
+     * @param db
+     * @return
+     */
+    static ArrayList<String> getCurrencies(SQLiteDatabase db) {
+
+	final ArrayList<String> currencies = new ArrayList<String>();
+	final Cursor cursor = db.rawQuery(Query.CURRENCIES_SQL, null);
+	try {
+	    while (cursor.moveToNext()) {
+		currencies.add(cursor.getString(0));
+	    }
+	} finally {
+	    cursor.close();
+	}
+	return currencies;
+
+    }
+
+    /**
+     * Compacts history rows into blocks for currencies that have enough of
+     * them.
+     *
+     * @param db
+     */
+    static void compact(SQLiteDatabase db) {
+
+	final ArrayList<String> currencies = new ArrayList<String>();
+	final Cursor cursor = db.rawQuery(Query.COMPACT_CANDIDATES_SQL, null);
+	try {
+	    while (cursor.moveToNext()) {
+		currencies.add(cursor.getString(0));
+	    }
+	} finally {
+	    cursor.close();
+	}
+
+	for (String currency : currencies) {
+	    final String[] args = new String[]{currency};
+	    db.beginTransaction();
+	    try {
+		while (DatabaseUtils.longForQuery(db, Query.ROW_COUNT_SQL, args)
+			>= COMPACT_THRESHOLD) {
+		    compactOldest(db, currency, args);
+		}
+		db.setTransactionSuccessful();
+	    } finally {
+		db.endTransaction();
+	    }
+	}
+
+    }
+
+    /**
+     * Encodes oldest BLOCK_SIZE rows of currency into a block and deletes
+     * them.
+     */
+    private static void compactOldest(SQLiteDatabase db, String currency,
+	    String[] args) {
+
+	final RateSeriesEncoder encoder = new RateSeriesEncoder(BLOCK_SIZE);
+	long start = 0;
+	long end = 0;
+
+	final Cursor cursor = db.rawQuery(Query.OLDEST_ROWS_SQL, args);
+	try {
+	    while (cursor.moveToNext()) {
+		end = cursor.getLong(0);
+		if (encoder.getCount() == 0) {
+		    start = end;
+		}
+		encoder.add(end, cursor.getDouble(1));
+	    }
+	} finally {
+	    cursor.close();
+	}
+
+	final ContentValues values = new ContentValues(5);
+	values.put(ConversionRateColumns.RATE_CURRENCY, currency);
+	values.put(RateBlockColumns.BLOCK_START, start);
+	values.put(RateBlockColumns.BLOCK_END, end);
+	values.put(RateBlockColumns.BLOCK_COUNT, encoder.getCount());
+	values.put(RateBlockColumns.BLOCK_DATA, encoder.toByteArray());
+	db.insertOrThrow(Tables.CURRENCY_RATE_BLOCK, null, values);
+
+	db.delete(Tables.CURRENCY_RATE_HISTORY,
+		ConversionRateColumns.RATE_CURRENCY + "=? and "
+		+ ConversionRateColumns.RATE_UPDATED + "<=?",
+		new String[]{currency, String.valueOf(end)});
+
+    }
+
+    /**
+     * Deletes history before given time. Blocks are deleted only when all of
+     * their samples are older.
+     *
+     * @param db
+     * @param before
+     * @return number of rows and blocks deleted
+     */
+    static int prune(SQLiteDatabase db, long before) {
+
+	final String[] args = new String[]{String.valueOf(before)};
+
+	return db.delete(Tables.CURRENCY_RATE_HISTORY,
+		ConversionRateColumns.RATE_UPDATED + "<?", args)
+		+ db.delete(Tables.CURRENCY_RATE_BLOCK,
+		RateBlockColumns.BLOCK_END + "<?", args);
+
+    }
+
+    /**
+     * Streams samples of a currency in time order, decoding blocks as they
+     * are reached and merging them with the rows that are not compacted yet.
+     */
+    static final class Series {
+
+	private final Cursor mBlocks;
+
+	private final Cursor mRows;
+
+	private final long mFrom;
+
+	private final long mTo;
+
+	private RateSeriesDecoder mDecoder;
+
+	private boolean mHasBlockSample;
+
+	private long mBlockTime;
+
+	private double mBlockValue;
+
+	private boolean mHasRowSample;
+
+	private long mTime;
+
+	private double mValue;
+
+	private Series(Cursor blocks, Cursor rows, long from, long to) {
+
+	    mBlocks = blocks;
+	    mRows = rows;
+	    mFrom = from;
+	    mTo = to;
+	    nextBlockSample();
+	    mHasRowSample = mRows.moveToNext();
+
+	}
+
+	/**
+	 * Moves to the next sample.
+	 *
+	 * @return false if there are no more samples in range
+	 */
+	boolean next() {
+
+	    if (mHasBlockSample && (!mHasRowSample
+		    || mBlockTime <= mRows.getLong(0))) {
+		mTime = mBlockTime;
+		mValue = mBlockValue;
+		nextBlockSample();
+		return true;
+	    }
+
+	    if (mHasRowSample) {
+		mTime = mRows.getLong(0);
+		mValue = mRows.getDouble(1);
+		mHasRowSample = mRows.moveToNext();
+		return true;
+	    }
+
+	    return false;
+
+	}
+
+	long getTime() {
+	    return mTime;
+	}
+
+	double getValue() {
+	    return mValue;
+	}
+
+	void close() {
+	    mBlocks.close();
+	    mRows.close();
+	}
+
+	private void nextBlockSample() {
+
+	    mHasBlockSample = false;
+
+	    while (true) {
+
+		if (mDecoder != null && mDecoder.next()) {
+		    final long time = mDecoder.getTime();
+		    if (time < mFrom) {
+			continue;
+		    }
+		    if (time >= mTo) {
+			mDecoder = null;
+			continue;
+		    }
+		    mBlockTime = time;
+		    mBlockValue = mDecoder.getValue();
+		    mHasBlockSample = true;
+		    return;
+		}
+
+		if (!mBlocks.moveToNext()) {
+		    mDecoder = null;
+		    return;
+		}
+
+		mDecoder = new RateSeriesDecoder(mBlocks.getBlob(1),
+			mBlocks.getInt(0));
+
+	    }
+
+	}
+
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+/**
+ * Streaming decoder of blocks written by {@link RateSeriesEncoder}. Samples
+ * are decoded one at a time, without allocating, as {@link #next()} is
+ * called.
+ */
+final class RateSeriesDecoder {
+
+    private final byte[] mData;
+
+    private final int mCount;
+
+    private int mBitPosition;
+
+    private int mIndex;
+
+    private long mTime;
+
+    private long mDelta;
+
+    private long mBits;
+
+    private int mLeading;
+
+    private int mTrailing;
+
+    /**
+     * @param data encoded block
+     * @param count number of samples in the block
+     */
+    RateSeriesDecoder(byte[] data, int count) {
+	mData = data;
+	mCount = count;
+    }
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return false if there are no more samples
+     */
+    boolean next() {
+
+	if (mIndex >= mCount) {
+	    return false;
+	}
+
+	if (mIndex == 0) {
+	    mTime = readBits(64);
+	    mBits = readBits(64);
+	} else {
+	    readTime();
+	    readValue();
+	}
+
+	mIndex++;
+	return true;
+
+    }
+
+    long getTime() {
+	return mTime;
+    }
+
+    double getValue() {
+	return Double.longBitsToDouble(mBits);
+    }
+
+    private void readTime() {
+
+	final long deltaOfDelta;
+
+	if (readBits(1) == 0) {
+	    deltaOfDelta = 0;
+	} else if (readBits(1) == 0) {
+	    deltaOfDelta = readSigned(12);
+	} else if (readBits(1) == 0) {
+	    deltaOfDelta = readSigned(20);
+	} else if (readBits(1) == 0) {
+	    deltaOfDelta = readSigned(32);
+	} else {
+	    deltaOfDelta = readBits(64);
+	}
+
+	mDelta += deltaOfDelta;
+	mTime += mDelta;
+
+    }
+
+    private void readValue() {
+
+	if (readBits(1) == 0) {
+	    return;
+	}
+
+	if (readBits(1) != 0) {
+	    mLeading = (int) readBits(5);
+	    int length = (int) readBits(6);
+	    if (length == 0) {
+		length = 64;
+	    }
+	    mTrailing = 64 - mLeading - length;
+	}
+
+	final int length = 64 - mLeading - mTrailing;
+	mBits ^= readBits(length) << mTrailing;
+
+    }
+
+    private long readSigned(int n) {
+
+	final long value = readBits(n);
+	return (value << (64 - n)) >> (64 - n);
+
+    }
+
+    /**
+     * Reads <code>n</code> bits, most significant first.
+     */
+    private long readBits(int n) {
+
+	long value = 0;
+	int remaining = n;
+
+	// take as many bits of each byte at once as possible
+	while (remaining > 0) {
+	    final int available = 8 - (mBitPosition & 7);
+	    final int take = Math.min(available, remaining);
+	    final int bits = ((mData[mBitPosition >> 3] & 0xFF)
+		    >>> (available - take)) & ((1 << take) - 1);
+	    value = (value << take) | bits;
+	    mBitPosition += take;
+	    remaining -= take;
+	}
+	return value;
+
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+/**
+ * Encodes a series of (timestamp, rate) samples of one currency into a
+ * compact block. Timestamps are stored as delta-of-deltas and rates as XOR
+ * of the previous value's bits, both with variable length bit codes:
+ *
+ * <pre>
+ * timestamp delta-of-delta
+ *   0                 0
+ *   10   + 12 bits    [-2048, 2047]
+ *   110  + 20 bits
+ *   1110 + 32 bits
+ *   1111 + 64 bits
+ *
+ * rate XOR previous
+ *   0                 same rate
+ *   10   + bits       meaningful bits within previous leading/trailing zeros
+ *   11   + 5 bits leading zeros + 6 bits length + bits
+ * </pre>
+ *
+ * The first sample is stored as is. Samples must be added in timestamp order.
+ *
+ * @see RateSeriesDecoder
+ */
+final class RateSeriesEncoder {
+
+    private byte[] mBuffer;
+
+    private int mBitPosition;
+
+    private int mCount;
+
+    private long mPreviousTime;
+
+    private long mPreviousDelta;
+
+    private long mPreviousBits;
+
+    private int mPreviousLeading = -1;
+
+    private int mPreviousTrailing;
+
+    /**
+     * @param expectedSamples used to size the initial buffer
+     */
+    RateSeriesEncoder(int expectedSamples) {
+	mBuffer = new byte[16 + expectedSamples * 2];
+    }
+
+    void add(long time, double value) {
+
+	final long bits = Double.doubleToRawLongBits(value);
+
+	if (mCount == 0) {
+	    writeBits(time, 64);
+	    writeBits(bits, 64);
+	} else {
+	    writeTime(time);
+	    writeValue(bits);
+	}
+
+	mPreviousTime = time;
+	mPreviousBits = bits;
+	mCount++;
+
+    }
+
+    private void writeTime(long time) {
+
+	final long delta = time - mPreviousTime;
+	final long deltaOfDelta = delta - mPreviousDelta;
+	mPreviousDelta = delta;
+
+	if (deltaOfDelta == 0) {
+	    writeBits(0, 1);
+	} else if (fits(deltaOfDelta, 12)) {
+	    writeBits(0x2, 2);
+	    writeBits(deltaOfDelta, 12);
+	} else if (fits(deltaOfDelta, 20)) {
+	    writeBits(0x6, 3);
+	    writeBits(deltaOfDelta, 20);
+	} else if (fits(deltaOfDelta, 32)) {
+	    writeBits(0xE, 4);
+	    writeBits(deltaOfDelta, 32);
+	} else {
+	    writeBits(0xF, 4);
+	    writeBits(deltaOfDelta, 64);
+	}
+
+    }
+
+    private void writeValue(long bits) {
+
+	final long xor = bits ^ mPreviousBits;
+
+	if (xor == 0) {
+	    writeBits(0, 1);
+	    return;
+	}
+
+	// leading zeros must fit into 5 bits
+	final int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+	final int trailing = Long.numberOfTrailingZeros(xor);
+
+	if (mPreviousLeading != -1 && leading >= mPreviousLeading
+		&& trailing >= mPreviousTrailing) {
+	    writeBits(0x2, 2);
+	    writeBits(xor >>> mPreviousTrailing,
+		    64 - mPreviousLeading - mPreviousTrailing);
+	} else {
+	    final int length = 64 - leading - trailing;
+	    writeBits(0x3, 2);
+	    writeBits(leading, 5);
+	    // length of 64 is stored as 0
+	    writeBits(length & 0x3F, 6);
+	    writeBits(xor >>> trailing, length);
+	    mPreviousLeading = leading;
+	    mPreviousTrailing = trailing;
+	}
+
+    }
+
+    private static boolean fits(long value, int bits) {
+
+	final long min = -(1L << (bits - 1));
+	final long max = (1L << (bits - 1)) - 1;
+	return value >= min && value <= max;
+
+    }
+
+    /**
+     * Writes lowest <code>n</code> bits of value, most significant first.
+     */
+    private void writeBits(long value, int n) {
+
+	ensureCapacity(n);
+	int remaining = n;
+
+	// fill the free bits of each byte at once
+	while (remaining > 0) {
+	    final int available = 8 - (mBitPosition & 7);
+	    final int take = Math.min(available, remaining);
+	    final int bits = (int) (value >>> (remaining - take))
+		    & ((1 << take) - 1);
+	    mBuffer[mBitPosition >> 3] |= (byte) (bits << (available - take));
+	    mBitPosition += take;
+	    remaining -= take;
+	}
+
+    }
+
+    private void ensureCapacity(int bits) {
+
+	final int bytes = (mBitPosition + bits + 7) >> 3;
+	if (bytes > mBuffer.length) {
+	    final byte[] buffer = new byte[Math.max(bytes, mBuffer.length * 2)];
+	    System.arraycopy(mBuffer, 0, buffer, 0, mBuffer.length);
+	    mBuffer = buffer;
+	}
+
+    }
+
+    /**
+     * Returns number of samples added.
+     *
+     * @return
+     */
+    int getCount() {
+	return mCount;
+    }
+
+    /**
+     * Returns the encoded block.
+     *
+     * @return
+     */
+    byte[] toByteArray() {
+
+	final byte[] data = new byte[(mBitPosition + 7) >> 3];
+	System.arraycopy(mBuffer, 0, data, 0, data.length);
+	return data;
+
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import fi.kinetik.android.currencies.util.CurrencyCode;
+import fi.kinetik.android.currencies.util.IOUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary copy of the rate table kept next to the database, so that a cold
+ * provider can convert without opening the database. The file is memory
+ * mapped when read and has a fixed layout, big endian:
+ *
+ * <pre>
+ * int     magic
+ * int     version
+ * long    time written, millis
+ * int     packed base currency code
+ * int     n, number of currencies
+ * int[n]  packed currency codes, alphabetical
+ * double[n] rates relative to the base currency
+ * </pre>
+ *
+ * Files are replaced by renaming a complete temporary file over them, so
+ * readers never see a partially written one.
+ *
+ * @see CurrencyCode
+ */
+final class RateSnapshot {
+
+    static final String FILE_NAME = "currencies.snapshot";
+
+    private static final int MAGIC = 0x43525354;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    private RateSnapshot() {
+	// N/A
+    }
+
+    /**
+     * Reads rate table from snapshot file. The table has the base currency
+     * that was written with it.
+     *
+     * @param file
+     * @return table or null if there is no usable snapshot
+     * @throws IOException
+     */
+    static RateTable read(File file) throws IOException {
+
+	if (!file.exists()) {
+	    return null;
+	}
+
+	final RandomAccessFile in = new RandomAccessFile(file, "r");
+	try {
+
+	    final FileChannel channel = in.getChannel();
+	    final long length = channel.size();
+	    if (length < HEADER_SIZE) {
+		return null;
+	    }
+
+	    final MappedByteBuffer buffer =
+		    channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+	    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+		return null;
+	    }
+	    buffer.getLong();
+	    final int baseCode = buffer.getInt();
+	    if (!CurrencyCode.isValid(baseCode)) {
+		return null;
+	    }
+
+	    final int count = buffer.getInt();
+	    if (count < 0 || length != HEADER_SIZE + 12L * count) {
+		return null;
+	    }
+
+	    final String[] currencies = new String[count];
+	    final double[] rates = new double[count];
+	    for (int i = 0; i < count; i++) {
+		final int code = buffer.getInt();
+		if (!CurrencyCode.isValid(code)) {
+		    return null;
+		}
+		currencies[i] = CurrencyCode.toString(code);
+	    }
+	    for (int i = 0; i < count; i++) {
+		rates[i] = buffer.getDouble();
+	    }
+
+	    return RateTable.create(CurrencyCode.toString(baseCode), currencies,
+		    rates, null);
+
+	} finally {
+	    IOUtils.close(in);
+	}
+
+    }
+
+    /**
+     * Writes rate table into snapshot file, replacing previous one.
+     *
+     * @param file
+     * @param table
+     * @param time time of writing in millis
+     * @throws IOException
+     */
+    static void write(File file, RateTable table, long time)
+	    throws IOException {
+
+	final int count = table.size();
+	final int baseCode = CurrencyCode.pack(table.getBaseCurrency());
+	if (baseCode == CurrencyCode.INVALID) {
+	    delete(file);
+	    return;
+	}
+
+	final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 12 * count);
+	buffer.putInt(MAGIC);
+	buffer.putInt(VERSION);
+	buffer.putLong(time);
+	buffer.putInt(baseCode);
+	buffer.putInt(count);
+	for (int i = 0; i < count; i++) {
+	    final int code = table.getCode(i);
+	    if (code == CurrencyCode.INVALID) {
+		// such rates cannot be stored, let readers go to database
+		delete(file);
+		return;
+	    }
+	    buffer.putInt(code);
+	}
+	for (int i = 0; i < count; i++) {
+	    buffer.putDouble(table.getRate(i));
+	}
+
+	final File temp = new File(file.getPath() + ".tmp");
+	final FileOutputStream out = new FileOutputStream(temp);
+	try {
+	    out.write(buffer.array());
+	    out.getFD().sync();
+	} finally {
+	    IOUtils.close(out);
+	}
+
+	if (!temp.renameTo(file)) {
+	    temp.delete();
+	    throw new IOException("failed to replace " + file);
+	}
+
+    }
+
+    /**
+     * Deletes snapshot file so that rates are read from database.
+     *
+     * @param file
+     */
+    static void delete(File file) {
+	file.delete();
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRateColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.RateDailyColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.Tables;
+import java.util.ArrayList;
+
+/**
+ * Aggregates of rate history over time windows. A per-day summary (UTC
+ * days) is kept up to date as samples are recorded so that the full days of
+ * a window are read from summaries and only the partial days at its edges
+ * from the samples themselves.
+ */
+final class RateStatsStore {
+
+    static final long DAY_MILLIS = 1000L * 60 * 60 * 24;
+
+    interface Query {
+
+	String INSERT_DAY_SQL =
+		"insert or ignore into " + Tables.CURRENCY_RATE_DAILY + "("
+		+ ConversionRateColumns.RATE_CURRENCY + ","
+		+ RateDailyColumns.DAY + ","
+		+ RateDailyColumns.DAY_MIN + ","
+		+ RateDailyColumns.DAY_MAX + ","
+		+ RateDailyColumns.DAY_SUM + ","
+		+ RateDailyColumns.DAY_COUNT + ","
+		+ RateDailyColumns.DAY_LAST + ","
+		+ RateDailyColumns.DAY_LAST_UPDATED
+		+ ") values (?,?,?,?,0,0,?,?)";
+
+	String UPDATE_DAY_SQL =
+		"update " + Tables.CURRENCY_RATE_DAILY + " set "
+		+ RateDailyColumns.DAY_MIN + "=min(" + RateDailyColumns.DAY_MIN + ",?1),"
+		+ RateDailyColumns.DAY_MAX + "=max(" + RateDailyColumns.DAY_MAX + ",?1),"
+		+ RateDailyColumns.DAY_SUM + "=" + RateDailyColumns.DAY_SUM + "+?1,"
+		+ RateDailyColumns.DAY_COUNT + "=" + RateDailyColumns.DAY_COUNT + "+1,"
+		+ RateDailyColumns.DAY_LAST + "=case when ?2>="
+		+ RateDailyColumns.DAY_LAST_UPDATED + " then ?1 else "
+		+ RateDailyColumns.DAY_LAST + " end,"
+		+ RateDailyColumns.DAY_LAST_UPDATED + "=max("
+		+ RateDailyColumns.DAY_LAST_UPDATED + ",?2)"
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?3"
+		+ " and " + RateDailyColumns.DAY + "=?4";
+
+	String DAYS_SQL =
+		"select min(" + RateDailyColumns.DAY_MIN + "),"
+		+ "max(" + RateDailyColumns.DAY_MAX + "),"
+		+ "sum(" + RateDailyColumns.DAY_SUM + "),"
+		+ "sum(" + RateDailyColumns.DAY_COUNT + ")"
+		+ " from " + Tables.CURRENCY_RATE_DAILY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + RateDailyColumns.DAY + ">=?"
+		+ " and " + RateDailyColumns.DAY + "<?";
+
+	String LAST_DAY_SQL =
+		"select " + RateDailyColumns.DAY_LAST + ","
+		+ RateDailyColumns.DAY_LAST_UPDATED
+		+ " from " + Tables.CURRENCY_RATE_DAILY
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?"
+		+ " and " + RateDailyColumns.DAY + ">=?"
+		+ " and " + RateDailyColumns.DAY + "<?"
+		+ " order by " + RateDailyColumns.DAY + " desc"
+		+ " limit 1";
+
+    }
+
+    private RateStatsStore() {
+	// N/A
+    }
+
+    /**
+     * Adds a sample into the summary of its day.
+     *
+     * @param db
+     * @param currency
+     * @param time
+     * @param value
+     */
+    static void record(SQLiteDatabase db, String currency, long time,
+	    double value) {
+
+	final long day = dayOf(time);
+
+	db.execSQL(Query.INSERT_DAY_SQL, new Object[]{
+		    currency, day, value, value, value, time});
+	db.execSQL(Query.UPDATE_DAY_SQL, new Object[]{
+		    value, time, currency, day});
+
+    }
+
+    /**
+     * Records samples with statements compiled once, for writing many 
+     * samples in a transaction.
+     */
+    static final class Recorder {
+
+	private final SQLiteStatement mInsertDay;
+
+	private final SQLiteStatement mUpdateDay;
+
+	Recorder(SQLiteDatabase db) {
+	    mInsertDay = db.compileStatement(Query.INSERT_DAY_SQL);
+	    mUpdateDay = db.compileStatement(Query.UPDATE_DAY_SQL);
+	}
+
+	/**
+	 * Adds a sample into the summary of its day.
+	 * 
+	 * @see RateStatsStore#record
+	 */
+	void record(String currency, long time, double value) {
+
+	    final long day = dayOf(time);
+
+	    mInsertDay.bindString(1, currency);
+	    mInsertDay.bindLong(2, day);
+	    mInsertDay.bindDouble(3, value);
+	    mInsertDay.bindDouble(4, value);
+	    mInsertDay.bindDouble(5, value);
+	    mInsertDay.bindLong(6, time);
+	    mInsertDay.execute();
+
+	    mUpdateDay.bindDouble(1, value);
+	    mUpdateDay.bindLong(2, time);
+	    mUpdateDay.bindString(3, currency);
+	    mUpdateDay.bindLong(4, day);
+	    mUpdateDay.execute();
+
+	}
+
+	void close() {
+	    mInsertDay.close();
+	    mUpdateDay.close();
+	}
+
+    }
+
+    /**
+     * Computes stats of currency within time range.
+     *
+     * @param db
+     * @param currency
+     * @param from start of range, inclusive
+     * @param to end of range, exclusive
+     * @return
+     */
+    static Stats query(SQLiteDatabase db, String currency, long from,
+	    long to) {
+
+	final Stats stats = new Stats();
+	from = Math.max(from, 0);
+	if (from >= to) {
+	    return stats;
+	}
+
+	// days entirely within range
+	final long firstDay = (from + DAY_MILLIS - 1) / DAY_MILLIS;
+	final long endDay = to / DAY_MILLIS;
+
+	if (firstDay >= endDay) {
+	    addSamples(db, stats, currency, from, to);
+	    return stats;
+	}
+
+	addSamples(db, stats, currency, from, firstDay * DAY_MILLIS);
+	addDays(db, stats, currency, firstDay, endDay);
+	addSamples(db, stats, currency, endDay * DAY_MILLIS, to);
+	return stats;
+
+    }
+
+    /**
+     * Deletes summaries of days before given time.
+     *
+     * @param db
+     * @param before
+     */
+    static void prune(SQLiteDatabase db, long before) {
+
+	db.delete(Tables.CURRENCY_RATE_DAILY, RateDailyColumns.DAY + "<?",
+		new String[]{String.valueOf(dayOf(before))});
+
+    }
+
+    /**
+     * Recomputes all summaries from history.
+     *
+     * @param db
+     */
+    static void rebuild(SQLiteDatabase db) {
+
+	db.delete(Tables.CURRENCY_RATE_DAILY, null, null);
+
+	final ArrayList<String> currencies = RateHistoryStore.getCurrencies(db);
+	final Recorder recorder = new Recorder(db);
+	try {
+	    for (String currency : currencies) {
+		final RateHistoryStore.Series series = RateHistoryStore.query(db,
+			currency, Long.MIN_VALUE, Long.MAX_VALUE);
+		try {
+		    while (series.next()) {
+			recorder.record(currency, series.getTime(),
+				series.getValue());
+		    }
+		} finally {
+		    series.close();
+		}
+	    }
+	} finally {
+	    recorder.close();
+	}
+
+    }
+
+    private static long dayOf(long time) {
+	return time >= 0 ? time / DAY_MILLIS : (time + 1) / DAY_MILLIS - 1;
+    }
+
+    private static void addSamples(SQLiteDatabase db, Stats stats,
+	    String currency, long from, long to) {
+
+	if (from >= to) {
+	    return;
+	}
+
+	final RateHistoryStore.Series series =
+		RateHistoryStore.query(db, currency, from, to);
+	try {
+	    while (series.next()) {
+		stats.add(series.getTime(), series.getValue());
+	    }
+	} finally {
+	    series.close();
+	}
+
+    }
+
+    private static void addDays(SQLiteDatabase db, Stats stats,
+	    String currency, long firstDay, long endDay) {
+
+	final String[] args = new String[]{
+	    currency, String.valueOf(firstDay), String.valueOf(endDay)};
+
+	Cursor cursor = db.rawQuery(Query.DAYS_SQL, args);
+	try {
+	    if (!cursor.moveToFirst() || cursor.isNull(3)
+		    || cursor.getLong(3) == 0) {
+		return;
+	    }
+	    stats.merge(cursor.getLong(3), cursor.getDouble(0),
+		    cursor.getDouble(1), cursor.getDouble(2));
+	} finally {
+	    cursor.close();
+	}
+
+	cursor = db.rawQuery(Query.LAST_DAY_SQL, args);
+	try {
+	    if (cursor.moveToFirst()) {
+		stats.setLast(cursor.getLong(1), cursor.getDouble(0));
+	    }
+	} finally {
+	    cursor.close();
+	}
+
+    }
+
+    /**
+     * Aggregated values of a window.
+     */
+    static final class Stats {
+
+	long count;
+
+	double min = Double.POSITIVE_INFINITY;
+
+	double max = Double.NEGATIVE_INFINITY;
+
+	double sum;
+
+	double last = Double.NaN;
+
+	long lastUpdated = Long.MIN_VALUE;
+
+	void add(long time, double value) {
+
+	    merge(1, value, value, value);
+	    setLast(time, value);
+
+	}
+
+	void merge(long count, double min, double max, double sum) {
+
+	    this.count += count;
+	    this.min = Math.min(this.min, min);
+	    this.max = Math.max(this.max, max);
+	    this.sum += sum;
+
+	}
+
+	void setLast(long time, double value) {
+
+	    if (time >= lastUpdated) {
+		lastUpdated = time;
+		last = value;
+	    }
+
+	}
+
+	double getAverage() {
+	    return count > 0 ? sum / count : Double.NaN;
+	}
+
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRateColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.Tables;
+import fi.kinetik.android.currencies.util.CurrencyCode;
+import java.util.Arrays;
+
+/**
+ * Immutable in-memory snapshot of the conversion rates. Each currency is
+ * assigned a dense ordinal and rates are kept in a primitive array indexed
+ * by that ordinal, relative to the base currency. Ordinals follow the
+ * alphabetical order of the currency codes and are looked up by packed
+ * currency code without allocating.
+ *
+ * Up to {@link #MAX_CROSS_RATE_CURRENCIES} currencies a cross-rate matrix is
+ * precomputed so that a conversion is a single multiplication. When a table
+ * is loaded over a previous one with the same currencies only the rows and
+ * columns of the changed rates are recomputed.
+ *
+ * Instances are never modified after loading, a new table is loaded
+ * whenever the rates change.
+ */
+final class RateTable {
+
+    /**
+     * Ordinal returned for currencies that are not in the table.
+     */
+    static final int NO_CURRENCY = -1;
+
+    /**
+     * Largest number of currencies a cross-rate matrix is kept for. The
+     * matrix takes 8 * n * n bytes: 320 kB for 200 currencies and 2 MB for
+     * 512. 2000 currencies would take 32 MB, past that conversions divide
+     * the rates instead.
+     */
+    static final int MAX_CROSS_RATE_CURRENCIES = 512;
+
+    private static final String[] PROJECTION = new String[]{
+	ConversionRateColumns.RATE_CURRENCY,
+	ConversionRateColumns.RATE_VALUE
+    };
+
+    private final String mBaseCurrency;
+
+    private final String[] mCurrencies;
+
+    private final double[] mRates;
+
+    private final int[] mCodes;
+
+    /**
+     * Ordinal + 1 indexed by packed currency code, zero for unknown codes.
+     */
+    private final short[] mOrdinals;
+
+    private final MinorUnitConverter mMinorUnits;
+
+    /**
+     * Cross rates, rate from ordinal i to ordinal j at i * n + j. Null when
+     * there are too many currencies.
+     */
+    private final double[] mCrossRates;
+
+    private RateTable(String baseCurrency, String[] currencies, double[] rates,
+	    RateTable previous) {
+
+	mBaseCurrency = baseCurrency;
+	mCurrencies = currencies;
+	mRates = rates;
+	mCrossRates = buildCrossRates(rates, previous);
+	mMinorUnits = new MinorUnitConverter(currencies, rates);
+	mCodes = new int[currencies.length];
+	mOrdinals = new short[CurrencyCode.MAX_CODES];
+	for (int i = 0; i < currencies.length; i++) {
+	    mCodes[i] = CurrencyCode.pack(currencies[i]);
+	    if (mCodes[i] != CurrencyCode.INVALID) {
+		mOrdinals[mCodes[i]] = (short) (i + 1);
+	    }
+	}
+
+    }
+
+    /**
+     * Computes the cross-rate matrix, reusing rows and columns of unchanged
+     * rates from previous table if it has the same currencies.
+     */
+    private double[] buildCrossRates(double[] rates, RateTable previous) {
+
+	final int n = rates.length;
+	if (n > MAX_CROSS_RATE_CURRENCIES) {
+	    return null;
+	}
+
+	if (previous == null || previous.mCrossRates == null
+		|| !Arrays.equals(mCurrencies, previous.mCurrencies)) {
+	    final double[] cross = new double[n * n];
+	    for (int i = 0; i < n; i++) {
+		for (int j = 0; j < n; j++) {
+		    cross[i * n + j] = rates[j] / rates[i];
+		}
+	    }
+	    return cross;
+	}
+
+	double[] cross = previous.mCrossRates;
+	for (int k = 0; k < n; k++) {
+	    if (rates[k] == previous.mRates[k]) {
+		continue;
+	    }
+	    if (cross == previous.mCrossRates) {
+		// copy on first change, unchanged tables share the matrix
+		cross = cross.clone();
+	    }
+	    for (int j = 0; j < n; j++) {
+		cross[k * n + j] = rates[j] / rates[k];
+		cross[j * n + k] = rates[k] / rates[j];
+	    }
+	}
+	return cross;
+
+    }
+
+    /**
+     * Loads all conversion rates from database. Rates are normalized against
+     * the rate of <code>baseCurrency</code> should one exist.
+     *
+     * @param db
+     * @param baseCurrency
+     * @param previous table loaded before this one or null, used to 
+     * recompute only the changed cross rates
+     * @return
+     */
+    static RateTable load(SQLiteDatabase db, String baseCurrency,
+	    RateTable previous) {
+
+	final Cursor cursor = db.query(Tables.CURRENCY_RATE, PROJECTION,
+		null, null, null, null, ConversionRateColumns.RATE_CURRENCY);
+
+	try {
+
+	    final int count = cursor.getCount();
+	    final String[] currencies = new String[count];
+	    final double[] rates = new double[count];
+	    double baseRate = 1.0;
+
+	    for (int i = 0; cursor.moveToNext(); i++) {
+		currencies[i] = cursor.getString(0);
+		rates[i] = cursor.getDouble(1);
+		if (currencies[i].equals(baseCurrency)) {
+		    baseRate = rates[i];
+		}
+	    }
+
+	    if (baseRate != 1.0) {
+		for (int i = 0; i < count; i++) {
+		    rates[i] /= baseRate;
+		}
+	    }
+
+	    return new RateTable(baseCurrency, currencies, rates, previous);
+
+	} finally {
+	    cursor.close();
+	}
+
+    }
+
+    /**
+     * Creates table of rates that are already normalized against the base
+     * currency.
+     *
+     * @param baseCurrency
+     * @param currencies currency codes in alphabetical order
+     * @param rates
+     * @param previous table loaded before this one or null
+     * @return
+     */
+    static RateTable create(String baseCurrency, String[] currencies,
+	    double[] rates, RateTable previous) {
+	return new RateTable(baseCurrency, currencies, rates, previous);
+    }
+
+    /**
+     * Returns ordinal of the currency or {@link #NO_CURRENCY} if currency is
+     * not known.
+     *
+     * @param currency 3-letter currency code
+     * @return
+     */
+    int ordinalOf(String currency) {
+	return ordinalOf(CurrencyCode.pack(currency));
+    }
+
+    /**
+     * Returns ordinal of the currency or {@link #NO_CURRENCY} if currency is
+     * not known.
+     *
+     * @param code packed currency code
+     * @return
+     * @see CurrencyCode
+     */
+    int ordinalOf(int code) {
+
+	if (code < 0 || code >= CurrencyCode.MAX_CODES) {
+	    return NO_CURRENCY;
+	}
+	return mOrdinals[code] - 1;
+
+    }
+
+    /**
+     * Returns currency the rates are relative to.
+     *
+     * @return 3-letter currency code
+     */
+    String getBaseCurrency() {
+	return mBaseCurrency;
+    }
+
+    int size() {
+	return mCurrencies.length;
+    }
+
+    String getCurrency(int ordinal) {
+	return mCurrencies[ordinal];
+    }
+
+    int getCode(int ordinal) {
+	return mCodes[ordinal];
+    }
+
+    double getRate(int ordinal) {
+	return mRates[ordinal];
+    }
+
+    /**
+     * Returns fixed-point converter for amounts in minor units, using the
+     * same ordinals as this table.
+     *
+     * @return
+     */
+    MinorUnitConverter getMinorUnitConverter() {
+	return mMinorUnits;
+    }
+
+    /**
+     * Converts amount between two currencies given as ordinals.
+     *
+     * @param from ordinal of the origin currency
+     * @param to ordinal of the target currency
+     * @param amount
+     * @return
+     */
+    double convert(int from, int to, double amount) {
+
+	final double[] cross = mCrossRates;
+	if (cross != null) {
+	    return amount * cross[from * mRates.length + to];
+	}
+	return amount * mRates[to] / mRates[from];
+
+    }
+
+}
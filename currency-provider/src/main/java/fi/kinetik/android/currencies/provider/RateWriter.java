@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRateColumns;
+import fi.kinetik.android.currencies.provider.CurrencyDatabaseHelper.Tables;
+
+/**
+ * Writes rates, their history and daily stats with statements compiled once
+ * and rebound per rate. Meant to be used within a transaction and closed
+ * afterwards. Rates are recorded relative to the base currency of the 
+ * writer.
+ */
+final class RateWriter {
+
+    interface Query {
+
+	String UPDATE_RATE_SQL =
+		"update " + Tables.CURRENCY_RATE + " set "
+		+ ConversionRateColumns.RATE_PROVIDER + "=?,"
+		+ ConversionRateColumns.RATE_UPDATED + "=?,"
+		+ ConversionRateColumns.RATE_VALUE + "=?,"
+		+ ConversionRateColumns.RATE_BASE + "=?5"
+		+ " where " + ConversionRateColumns.RATE_CURRENCY + "=?4";
+
+	String INSERT_RATE_SQL =
+		"insert into " + Tables.CURRENCY_RATE + "("
+		+ ConversionRateColumns.RATE_PROVIDER + ","
+		+ ConversionRateColumns.RATE_UPDATED + ","
+		+ ConversionRateColumns.RATE_VALUE + ","
+		+ ConversionRateColumns.RATE_CURRENCY + ","
+		+ ConversionRateColumns.RATE_BASE
+		+ ") values (?,?,?,?,?)";
+
+	String INSERT_HISTORY_SQL =
+		"insert or ignore into " + Tables.CURRENCY_RATE_HISTORY + "("
+		+ ConversionRateColumns.RATE_PROVIDER + ","
+		+ ConversionRateColumns.RATE_UPDATED + ","
+		+ ConversionRateColumns.RATE_VALUE + ","
+		+ ConversionRateColumns.RATE_CURRENCY
+		+ ") values (?,?,?,?)";
+
+    }
+
+    private final SQLiteStatement mUpdateRate;
+
+    private final SQLiteStatement mInsertRate;
+
+    private final SQLiteStatement mInsertHistory;
+
+    private final SQLiteStatement mCompacted;
+
+    private final RateStatsStore.Recorder mStats;
+
+    private final String mBaseCurrency;
+
+    /**
+     * @param db
+     * @param baseCurrency currency rates are relative to, null if not known
+     */
+    RateWriter(SQLiteDatabase db, String baseCurrency) {
+
+	mBaseCurrency = baseCurrency;
+	mUpdateRate = db.compileStatement(Query.UPDATE_RATE_SQL);
+	mInsertRate = db.compileStatement(Query.INSERT_RATE_SQL);
+	mInsertHistory = db.compileStatement(Query.INSERT_HISTORY_SQL);
+	mCompacted = db.compileStatement(RateHistoryStore.Query.COMPACTED_SQL);
+	mStats = new RateStatsStore.Recorder(db);
+
+    }
+
+    /**
+     * Updates rate of currency in place or inserts it if there is none, and
+     * records it into history.
+     *
+     * @param currency upper case 3-letter currency code
+     * @param provider
+     * @param updated
+     * @param rate
+     */
+    void write(String currency, String provider, long updated, double rate) {
+
+	// all statements share the same parameter order, rates add the base
+	bind(mUpdateRate, currency, provider, updated, rate);
+	bindBase(mUpdateRate);
+	if (mUpdateRate.executeUpdateDelete() == 0) {
+	    bind(mInsertRate, currency, provider, updated, rate);
+	    bindBase(mInsertRate);
+	    mInsertRate.executeInsert();
+	}
+
+	// samples older than compacted history, e.g. replayed ones, are not
+	// recorded
+	mCompacted.bindString(1, currency);
+	mCompacted.bindLong(2, updated);
+	if (mCompacted.simpleQueryForLong() > 0) {
+	    return;
+	}
+
+	// a sample already in history must not be counted twice
+	bind(mInsertHistory, currency, provider, updated, rate);
+	if (mInsertHistory.executeInsert() != -1) {
+	    mStats.record(currency, updated, rate);
+	}
+
+    }
+
+    void close() {
+
+	mUpdateRate.close();
+	mInsertRate.close();
+	mInsertHistory.close();
+	mCompacted.close();
+	mStats.close();
+
+    }
+
+    private static void bind(SQLiteStatement statement, String currency,
+	    String provider, long updated, double rate) {
+
+	statement.bindString(1, provider);
+	statement.bindLong(2, updated);
+	statement.bindDouble(3, rate);
+	statement.bindString(4, currency);
+
+    }
+
+    private void bindBase(SQLiteStatement statement) {
+
+	if (mBaseCurrency != null) {
+	    statement.bindString(5, mBaseCurrency);
+	} else {
+	    statement.bindNull(5);
+	}
+
+    }
+
+}
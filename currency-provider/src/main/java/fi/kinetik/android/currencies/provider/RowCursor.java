@@ -0,0 +1,274 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import android.database.AbstractCursor;
+
+/**
+ * Cursor of at most one row, filled from the in-memory rates. Answers of
+ * single conversions and rates are returned in it instead of a 
+ * MatrixCursor, which boxes each value and grows an Object array, or a
+ * SQLite cursor, which allocates a CursorWindow. Values are kept in
+ * primitive arrays that are reused: a closed cursor returns its
+ * {@link Values} to the {@link Pool} they were obtained from.
+ *
+ * The cursor itself is not reused, so a second close, the notification
+ * Uri and the observers of a cursor never reach the next query. A closed
+ * cursor has no values and throws if read. Cursors passed to other 
+ * processes are still copied into a CursorWindow by the framework, the
+ * savings are for clients in the same process.
+ */
+final class RowCursor extends AbstractCursor {
+
+    private final Pool mPool;
+
+    private final String[] mColumns;
+
+    private Values mValues;
+
+    private boolean mHasRow;
+
+    private RowCursor(Pool pool, Values values, String[] columns) {
+	mPool = pool;
+	mValues = values;
+	mColumns = columns;
+    }
+
+    /**
+     * Adds the row, with null values until set.
+     *
+     * @return
+     */
+    RowCursor addRow() {
+	mHasRow = true;
+	return this;
+    }
+
+    RowCursor setLong(int column, long value) {
+	final Values values = getValues();
+	values.mTypes[column] = FIELD_TYPE_INTEGER;
+	values.mLongs[column] = value;
+	return this;
+    }
+
+    RowCursor setDouble(int column, double value) {
+	final Values values = getValues();
+	values.mTypes[column] = FIELD_TYPE_FLOAT;
+	values.mDoubles[column] = value;
+	return this;
+    }
+
+    RowCursor setString(int column, String value) {
+	final Values values = getValues();
+	values.mTypes[column] =
+		value != null ? FIELD_TYPE_STRING : FIELD_TYPE_NULL;
+	values.mStrings[column] = value;
+	return this;
+    }
+
+    private Values getValues() {
+
+	final Values values = mValues;
+	if (values == null) {
+	    throw new IllegalStateException("cursor closed");
+	}
+	return values;
+
+    }
+
+    @Override
+    public int getCount() {
+	return mHasRow ? 1 : 0;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+	return mColumns;
+    }
+
+    @Override
+    public String getString(int column) {
+
+	final Values values = getValues();
+	switch (values.mTypes[column]) {
+	    case FIELD_TYPE_INTEGER:
+		return String.valueOf(values.mLongs[column]);
+	    case FIELD_TYPE_FLOAT:
+		return String.valueOf(values.mDoubles[column]);
+	    default:
+		return values.mStrings[column];
+	}
+
+    }
+
+    @Override
+    public short getShort(int column) {
+	return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+	return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+
+	final Values values = getValues();
+	switch (values.mTypes[column]) {
+	    case FIELD_TYPE_INTEGER:
+		return values.mLongs[column];
+	    case FIELD_TYPE_FLOAT:
+		return (long) values.mDoubles[column];
+	    case FIELD_TYPE_STRING:
+		return Long.parseLong(values.mStrings[column]);
+	    default:
+		return 0;
+	}
+
+    }
+
+    @Override
+    public float getFloat(int column) {
+	return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+
+	final Values values = getValues();
+	switch (values.mTypes[column]) {
+	    case FIELD_TYPE_INTEGER:
+		return values.mLongs[column];
+	    case FIELD_TYPE_FLOAT:
+		return values.mDoubles[column];
+	    case FIELD_TYPE_STRING:
+		return Double.parseDouble(values.mStrings[column]);
+	    default:
+		return 0;
+	}
+
+    }
+
+    /**
+     * Returns type of the value, so that numbers are copied into a
+     * CursorWindow as numbers rather than as strings.
+     */
+    @Override
+    public int getType(int column) {
+	return getValues().mTypes[column];
+    }
+
+    @Override
+    public boolean isNull(int column) {
+	return getValues().mTypes[column] == FIELD_TYPE_NULL;
+    }
+
+    /**
+     * Closes cursor and returns its values to the pool, only on the first
+     * close.
+     */
+    @Override
+    public void close() {
+
+	final Values values;
+	synchronized (this) {
+	    values = mValues;
+	    mValues = null;
+	}
+	super.close();
+	if (values != null) {
+	    mPool.release(values);
+	}
+
+    }
+
+    /**
+     * Drops values of a cursor that was never closed instead of returning
+     * them to the pool: the finalizer thread may close the cursor.
+     */
+    @Override
+    protected void finalize() {
+	mValues = null;
+	super.finalize();
+    }
+
+    /**
+     * Reusable values of a row.
+     */
+    static final class Values {
+
+	private int[] mTypes = new int[0];
+
+	private long[] mLongs = new long[0];
+
+	private double[] mDoubles = new double[0];
+
+	private String[] mStrings = new String[0];
+
+	/**
+	 * Prepares values for a query, all null.
+	 */
+	private Values reset(int columns) {
+
+	    if (mTypes.length < columns) {
+		mTypes = new int[columns];
+		mLongs = new long[columns];
+		mDoubles = new double[columns];
+		mStrings = new String[columns];
+	    }
+	    for (int i = 0; i < columns; i++) {
+		mTypes[i] = FIELD_TYPE_NULL;
+		mStrings[i] = null;
+	    }
+	    return this;
+
+	}
+
+    }
+
+    /**
+     * Bounded pool of row values, safe to use from the binder threads of
+     * the provider.
+     */
+    static final class Pool extends ObjectPool<Values> {
+
+	/**
+	 * @param capacity number of released values kept for reuse
+	 */
+	Pool(int capacity) {
+	    super(capacity);
+	}
+
+	@Override
+	protected Values create() {
+	    return new Values();
+	}
+
+	/**
+	 * Returns an open cursor without a row.
+	 *
+	 * @param columns
+	 * @return
+	 */
+	RowCursor obtain(String[] columns) {
+	    return new RowCursor(this, obtain().reset(columns.length),
+		    columns);
+	}
+
+    }
+
+}
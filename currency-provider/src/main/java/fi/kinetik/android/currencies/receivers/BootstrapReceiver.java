@@ -19,10 +19,11 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import fi.kinetik.android.currencies.service.CurrencySyncService;
+import fi.kinetik.android.currencies.spi.RatesSpiFactory;
 
 /**
- * Broadcast receiver that runs sync service once. This receiver should be 
- * mapped to receive:
+ * Broadcast receiver that runs sync service once, starting to create the 
+ * SPI factory ahead of it. This receiver should be mapped to receive:
  * <ul>
  * <li>android.intent.action.BOOT_COMPLETED</li>
  * <li>external apps available</li>
@@ -36,6 +37,7 @@ public class BootstrapReceiver extends BroadcastReceiver {
 	@Override
 	public void onReceive(Context context, Intent intent) {
 
+		RatesSpiFactory.getInstanceAsync(context);
 		context.startService(new Intent(CurrencySyncService.SYNC_ACTION));
 
 	}
@@ -15,19 +15,27 @@
  */
 package fi.kinetik.android.currencies.service;
 
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.PendingIntent;
 import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.os.ResultReceiver;
 import android.util.Log;
+import fi.kinetik.android.currencies.spi.FeedValidators;
+import fi.kinetik.android.currencies.spi.RateBatch;
 import fi.kinetik.android.currencies.spi.RatesSpi;
 import fi.kinetik.android.currencies.spi.RatesSpiFactory;
 import fi.kinetik.android.currencies.provider.CurrencyContract;
 import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRate;
+import fi.kinetik.android.currencies.provider.CurrencyContract.RateHistory;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Synchronizes currency conversion rates from remote site into local database.
@@ -54,6 +62,35 @@ public class CurrencySyncService extends IntentService {
 	 */
 	public static final String EXTRA_FORCE = "_force";
 
+	/**
+	 * Intent extra to write rates parsed from the last payload each 
+	 * provider cached instead of downloading them, for recovery and offline
+	 * testing. Sync time, backoff and feed validators are left as they are.
+	 * 
+	 * @see fi.kinetik.android.currencies.spi.PayloadCache
+	 */
+	public static final String EXTRA_REPLAY = "_replay";
+
+	/**
+	 * Bundle key for number of rates inserted, updated or deleted by the
+	 * sync. Passed to ResultReceiver with result code RESULT_CODE_FINISHED.
+	 */
+	public static final String EXTRA_ROWS_WRITTEN = "_rowsWritten";
+
+	/**
+	 * Bundle key for number of bytes received by the sync, as encoded for
+	 * transfer. Passed to ResultReceiver with result code 
+	 * RESULT_CODE_FINISHED.
+	 */
+	public static final String EXTRA_BYTES_RECEIVED = "_bytesReceived";
+
+	/**
+	 * Bundle key for number of bytes received by the sync after decoding
+	 * transfer compression. Passed to ResultReceiver with result code 
+	 * RESULT_CODE_FINISHED.
+	 */
+	public static final String EXTRA_BYTES_DECODED = "_bytesDecoded";
+
 	/**
 	 * Event code sent to ResultReceiver when service starts processing intent.
 	 */
@@ -79,6 +116,22 @@ public class CurrencySyncService extends IntentService {
 	 */
 	public static final int RESULT_CODE_UNAVAILABLE = 301;
 
+	/**
+	 * Event code sent to ResultReceiver when sync is not attempted because
+	 * previous syncs failed and the provider is backing off. Bundle contains
+	 * the time of the next attempt.
+	 * 
+	 * @see #EXTRA_RETRY_TIME
+	 */
+	public static final int RESULT_CODE_BACKOFF = 302;
+
+	/**
+	 * Bundle key for time in millis when failed sync is retried. Passed to
+	 * ResultReceiver with result codes RESULT_CODE_ERROR and 
+	 * RESULT_CODE_BACKOFF.
+	 */
+	public static final String EXTRA_RETRY_TIME = "_retryTime";
+
 	/**
 	 * Intent action to start synchronizing conversion rates.
 	 */
@@ -93,27 +146,95 @@ public class CurrencySyncService extends IntentService {
 
 	private static final String PREF_SYNC_INTERVAL = "syncInterval";
 
+	private static final String PREF_HISTORY_RETENTION = "historyRetention";
+
+	private static final String PREF_COALESCED_COUNT = "coalescedCount";
+
 	/**
-	 * Default interval for executing sync. 6 hours.
+	 * Marks intent whose receiver was attached to a sync already running.
+	 */
+	private static final String EXTRA_COALESCED = "_coalesced";
+
+	/**
+	 * Default interval for executing sync until rates have been seen to 
+	 * change. 6 hours.
+	 * 
+	 * @see SyncScheduler
 	 */
 	public static final long DEFAULT_SYNC_INTERVAL = 1000 * 60 * 60 * 6;
 
+	/**
+	 * Default time rate history is kept for. 1 year.
+	 */
+	public static final long DEFAULT_HISTORY_RETENTION =
+		1000L * 60 * 60 * 24 * 365;
+
 	private static final String TAG = NAME;
 
+	private static final String[] RATE_PROJECTION = new String[]{
+		ConversionRate.RATE_CURRENCY,
+		ConversionRate.RATE_PROVIDER,
+		ConversionRate.RATE_VALUE
+	};
+
 	/**
 	 * A reused batch of update operations.
 	 */
 	private final ArrayList<ContentProviderOperation> mOperations =
 		new ArrayList<ContentProviderOperation>();
 
+	/**
+	 * A reused batch of rates loaded from SPI.
+	 */
+	private final RateBatch mBatch = new RateBatch();
+
+	/**
+	 * A reused batch of rates to insert or update.
+	 */
+	private final RateBatch mChanges = new RateBatch();
+
 	private RatesSpiFactory mFactory;
 
 	private ResultReceiver mReceiver;
 
+	/**
+	 * Guards sync state shared with requests arriving on the main thread.
+	 */
+	private final Object mSyncLock = new Object();
+
+	private boolean mSyncing;
+
+	/**
+	 * Whether the running sync is forced and whether it replays, requests
+	 * are attached to it only if they ask for the same.
+	 */
+	private boolean mSyncForced;
+
+	private boolean mSyncReplay;
+
+	/**
+	 * Receivers of requests that arrived while sync was running, they get 
+	 * the result of that sync.
+	 */
+	private final ArrayList<ResultReceiver> mAttachedReceivers =
+		new ArrayList<ResultReceiver>();
+
+	private int mCoalesced;
+
 	private ContentResolver mResolver;
 
 	private SharedPreferences mPreferences;
 
+	private SyncBackoff mBackoff;
+
+	private SyncScheduler mScheduler;
+
+	/**
+	 * Mean relative change of stored rates in the last load, NaN if there
+	 * were none to compare to.
+	 */
+	private double mMovement;
+
 	public CurrencySyncService() {
 		super(NAME);
 	}
@@ -123,108 +244,452 @@ public class CurrencySyncService extends IntentService {
 
 		super.onCreate();
 
-		try {
-			mFactory = RatesSpiFactory.getInstance(this);
-		} catch (Exception e) {
-			Log.e(TAG, "failed to create currency conversion data factory, "
-				+ "data updates not available", e);
-			mFactory = null;
-			return;
+		mPreferences = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+		mScheduler = new SyncScheduler(this, mPreferences);
+		mResolver = getContentResolver();
+		mBackoff = new SyncBackoff(mPreferences);
+
+		// created on a background thread, the first sync waits for it
+		RatesSpiFactory.getInstanceAsync(this);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+
+		if (intent != null && SYNC_ACTION.equals(intent.getAction())) {
+			synchronized (mSyncLock) {
+				if (mSyncing && isForced(intent) == mSyncForced
+					&& isReplay(intent) == mSyncReplay) {
+					final ResultReceiver receiver =
+						intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
+					if (receiver != null) {
+						mAttachedReceivers.add(receiver);
+						receiver.send(RESULT_CODE_RUNNING, Bundle.EMPTY);
+					}
+					mCoalesced++;
+					// still queued so that the service stops only after it
+					intent.putExtra(EXTRA_COALESCED, true);
+				}
+			}
 		}
 
-		mResolver = getContentResolver();
-		mPreferences = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+		return super.onStartCommand(intent, flags, startId);
+
 	}
 
 	@Override
 	protected void onHandleIntent(Intent intent) {
 
+		if (intent.getBooleanExtra(EXTRA_COALESCED, false)) {
+			// result was sent with the sync it was attached to
+			return;
+		}
+
 		init(intent);
 
+		try {
+			sync(intent);
+		} finally {
+			// sync that ended without result must still release the
+			// receivers attached to it
+			final boolean syncing;
+			synchronized (mSyncLock) {
+				syncing = mSyncing;
+			}
+			if (syncing) {
+				sendAttached(RESULT_CODE_ERROR, Bundle.EMPTY);
+			}
+		}
+
+	}
+
+	private void sync(Intent intent) {
+
 		sendEvent(RESULT_CODE_RUNNING);
 
 		if (mFactory == null) {
-			sendEvent(RESULT_CODE_UNAVAILABLE);
+			try {
+				mFactory = RatesSpiFactory.getInstance(this);
+			} catch (Exception e) {
+				Log.e(TAG, "failed to create currency conversion data factory, "
+					+ "data updates not available", e);
+				sendEvent(RESULT_CODE_UNAVAILABLE);
+				return;
+			}
+		}
+
+		if (isReplay(intent)) {
+			replay(mFactory.newSpi());
 			return;
 		}
 
 		if (isUpToDate(intent)) {
 			Log.d(TAG, "rates up to date, not synching...");
+			mScheduler.ensureScheduled(System.currentTimeMillis());
 			sendEvent(RESULT_CODE_FINISHED);
 			return;
 		}
 
 		mOperations.clear();
+		mBatch.clear();
 
 		RatesSpi spi = mFactory.newSpi();
+		final String provider = spi.getProviderName();
+
+		// failing provider is not tried again before its retry time, however
+		// many times sync is triggered
+		final long retryTime = mBackoff.getRetryTime(provider);
+		if (System.currentTimeMillis() < retryTime) {
+			Log.d(TAG, provider + " backing off, circuit open: "
+				+ mBackoff.isCircuitOpen(provider));
+			recover(spi);
+			sendRetryEvent(RESULT_CODE_BACKOFF, retryTime, null);
+			return;
+		}
+
+		// SPIs of several providers back off each of them on their own
+		final SyncBackoff.Tracker tracker = mBackoff.newTracker();
 
 		try {
 
-			// retrieve new data
-			spi.loadData(mOperations);
+			// unchanged feeds are not downloaded again unless there are no
+			// rates stored from a previous load
+			mBatch.setConditional(hasRates() && (mFactory.getCapabilities()
+				& RatesSpiFactory.CAPABILITY_CONDITIONAL) != 0);
+			mBatch.setHealth(tracker);
 
-			// if we have any new rates, insert operation first to delete all
-			// previous values
-			if (!mOperations.isEmpty()) {
-				mOperations.add(0, ConversionRate.newDeleteOperation());
+			// retrieve new data
+			spi.loadData(mBatch);
+
+			if (mBatch.isNotModified()) {
+				Log.d(TAG, "rates not modified, not writing...");
+				mBackoff.onSuccess(provider);
+				updateSyncTime(0);
+				sendFinished(0);
+				return;
 			}
 
-			// add base currency should one not exists yet.
-			mOperations.add(ConversionRate.newUpdateOperation(
-				mFactory.getBaseCurrency(),
-				spi.getProviderName(),
-				System.currentTimeMillis(),
-				1.0));
+			// rates missing from a non-empty, complete load are no longer
+			// available
+			final boolean complete = !mBatch.isEmpty() && !mBatch.isPartial();
+
+			addBaseCurrency();
+
+			final int rowsWritten = writeChangedRates(provider, complete);
+
+			// drop history past retention
+			mOperations.add(RateHistory.newPruneOperation(
+				System.currentTimeMillis() - mPreferences.getLong(
+				PREF_HISTORY_RETENTION, DEFAULT_HISTORY_RETENTION)));
 
 			mResolver.applyBatch(CurrencyContract.CONTENT_AUTHORITY,
 				mOperations);
 
-			updateSyncTime();
+			if (mBatch.getValidatorKey() != null) {
+				FeedValidators.save(this, mBatch.getValidatorKey(),
+					mBatch.getETag(), mBatch.getLastModified());
+			}
+
+			mBackoff.onSuccess(provider);
+			updateSyncTime(mMovement);
 
-			sendEvent(RESULT_CODE_FINISHED);
+			sendFinished(rowsWritten);
 
 		} catch (Exception e) {
 
 			Log.e(TAG, "synching rates failed", e);
-			sendEvent(RESULT_CODE_ERROR, e);
+			recover(spi);
+			final long nextRetryTime;
+			if (tracker.isReported()
+				&& tracker.getRetryTime() != Long.MAX_VALUE) {
+				// retried once the first of the providers may be tried
+				nextRetryTime = tracker.getRetryTime();
+			} else {
+				nextRetryTime = mBackoff.onFailure(provider,
+					System.currentTimeMillis());
+			}
+			scheduleRetry(nextRetryTime);
+			sendRetryEvent(RESULT_CODE_ERROR, nextRetryTime, e);
+
+		}
+
+	}
+
+	/**
+	 * Writes rates parsed from the last payload cached by the provider.
+	 * 
+	 * @param spi
+	 */
+	private void replay(RatesSpi spi) {
+
+		try {
+			final int rowsWritten = writeCachedRates(spi);
+			if (rowsWritten == -1) {
+				Log.d(TAG, "no cached payload to replay");
+			}
+			sendFinished(Math.max(rowsWritten, 0));
+		} catch (Exception e) {
+			Log.e(TAG, "replaying rates failed", e);
+			final Bundle args = new Bundle(1);
+			args.putString(EXTRA_ERROR_MESSAGE, e.getMessage());
+			sendEvent(RESULT_CODE_ERROR, args);
+		}
+
+	}
+
+	/**
+	 * Restores rates from the payload cached by the provider if there are
+	 * none stored, e.g. after the database was recreated, while the 
+	 * provider cannot be loaded.
+	 * 
+	 * @param spi
+	 */
+	private void recover(RatesSpi spi) {
+
+		try {
+			if (!hasRates() && writeCachedRates(spi) > 0) {
+				Log.i(TAG, "rates recovered from cached payload");
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "recovering rates from cached payload failed", e);
+		}
 
+	}
+
+	/**
+	 * Loads rates from the payload cached by the provider and writes the
+	 * ones that changed. Stored rates missing from the payload are kept, 
+	 * the payload may be older than them.
+	 * 
+	 * @param spi
+	 * @return number of rates inserted or updated, -1 if there was no
+	 * payload
+	 * @throws Exception
+	 */
+	private int writeCachedRates(RatesSpi spi) throws Exception {
+
+		mBatch.clear();
+		mBatch.setReplay(true);
+		spi.loadData(mBatch);
+
+		if (mBatch.isEmpty()) {
+			return -1;
+		}
+
+		addBaseCurrency();
+		return writeChangedRates(spi.getProviderName(), false);
+
+	}
+
+	/**
+	 * Adds base currency to loaded rates should one not exists yet.
+	 */
+	private void addBaseCurrency() {
+
+		if (mBatch.indexOf(mFactory.getBaseCurrency()) == -1) {
+			mBatch.add(mFactory.getBaseCurrency(),
+				System.currentTimeMillis(), 1.0);
+		}
+
+	}
+
+	/**
+	 * Schedules sync to be retried at given time, replacing previously 
+	 * scheduled retry.
+	 * 
+	 * @param time
+	 */
+	private void scheduleRetry(long time) {
+
+		final AlarmManager alarmManager =
+			(AlarmManager) getSystemService(ALARM_SERVICE);
+		alarmManager.set(AlarmManager.RTC, time, PendingIntent.getService(this,
+			0, new Intent(SYNC_ACTION), PendingIntent.FLAG_UPDATE_CURRENT));
+
+	}
+
+	/**
+	 * Returns true if there are stored rates.
+	 * 
+	 * @return
+	 */
+	private boolean hasRates() {
+
+		final Cursor cursor = mResolver.query(ConversionRate.CONTENT_URI,
+			new String[]{ConversionRate.RATE_CURRENCY}, null, null, null);
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
 		}
 
 	}
 
 	/**
-	 * Returns true is last sync is within set interval and this request
-	 * does not have force set.
+	 * Compares loaded rates with stored ones and writes only the rates that
+	 * changed. New and changed rates are written and missing ones deleted
+	 * with a single provider call. Records how much stored rates moved.
+	 * 
+	 * @param provider name of the provider of loaded rates that do not
+	 * name their own
+	 * @param deleteMissing true to delete stored rates that were not loaded
+	 * @return number of rates inserted, updated or deleted
+	 */
+	private int writeChangedRates(String provider, boolean deleteMissing) {
+
+		final int size = mBatch.size();
+		final HashMap<String, Integer> indexes =
+			new HashMap<String, Integer>(size * 2);
+		for (int i = 0; i < size; i++) {
+			indexes.put(mBatch.getCurrency(i), i);
+		}
+
+		final boolean[] stored = new boolean[size];
+		final ArrayList<String> deleted = new ArrayList<String>();
+		mChanges.clear();
+		int updated = 0;
+		double movement = 0;
+		int compared = 0;
+
+		final Cursor cursor = mResolver.query(ConversionRate.CONTENT_URI,
+			RATE_PROJECTION, null, null, null);
+		try {
+			while (cursor.moveToNext()) {
+
+				final String currency = cursor.getString(0);
+				final Integer index = indexes.get(currency);
+
+				if (index == null) {
+					if (deleteMissing) {
+						deleted.add(currency);
+					}
+					continue;
+				}
+
+				final int i = index;
+				final String rateProvider = getProvider(i, provider);
+				stored[i] = true;
+
+				final double storedRate = cursor.getDouble(2);
+				if (storedRate != 0) {
+					movement += Math.abs(mBatch.getRate(i) / storedRate - 1);
+					compared++;
+				}
+				if (storedRate != mBatch.getRate(i)
+					|| !rateProvider.equals(cursor.getString(1))) {
+					mChanges.add(currency, mBatch.getUpdated(i),
+						mBatch.getRate(i), rateProvider);
+					updated++;
+				}
+
+			}
+		} finally {
+			cursor.close();
+		}
+
+		mMovement = compared > 0 ? movement / compared : Double.NaN;
+
+		int inserted = 0;
+		for (int i = 0; i < size; i++) {
+			if (!stored[i]) {
+				mChanges.add(mBatch.getCurrency(i), mBatch.getUpdated(i),
+					mBatch.getRate(i), getProvider(i, provider));
+				inserted++;
+			}
+		}
+
+		// writes and deletes in one call, observers refresh once
+		if (!mChanges.isEmpty() || !deleted.isEmpty()) {
+			final int count = mChanges.size();
+			final String[] currencies = new String[count];
+			final String[] providers = new String[count];
+			final long[] updatedTimes = new long[count];
+			final double[] rates = new double[count];
+			for (int i = 0; i < count; i++) {
+				currencies[i] = mChanges.getCurrency(i);
+				providers[i] = mChanges.getProvider(i);
+				updatedTimes[i] = mChanges.getUpdated(i);
+				rates[i] = mChanges.getRate(i);
+			}
+			ConversionRate.writeRates(mResolver, mFactory.getBaseCurrency(),
+				currencies, providers, updatedTimes, rates,
+				deleted.toArray(new String[deleted.size()]));
+		}
+
+		Log.i(TAG, "rates loaded: " + size + ", inserted: " + inserted
+			+ ", updated: " + updated + ", deleted: " + deleted.size());
+
+		return inserted + updated + deleted.size();
+
+	}
+
+	private String getProvider(int i, String defaultProvider) {
+
+		final String provider = mBatch.getProvider(i);
+		return provider != null ? provider : defaultProvider;
+
+	}
+
+	/**
+	 * Sets the time rate history is kept for. History older than this is
+	 * deleted on next sync.
+	 * 
+	 * @param context
+	 * @param retentionMillis
+	 */
+	public static void setHistoryRetention(Context context,
+		long retentionMillis) {
+
+		context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit().
+			putLong(PREF_HISTORY_RETENTION, retentionMillis).commit();
+
+	}
+
+	/**
+	 * Returns true is last sync is within set interval, this request
+	 * does not have force set and the rates table is not empty. An empty
+	 * table, e.g. after an upgrade, is synched at once and restored from
+	 * the cached payload if that fails.
 	 * 
 	 * @param intent
 	 * @return
 	 */
 	private boolean isUpToDate(Intent intent) {
 
-		if (intent.hasExtra(EXTRA_FORCE)) {
+		if (isForced(intent)) {
 			return false;
 		}
 
 		final long lastSyncMillis = mPreferences.getLong(PREF_LAST_SYNC, -1);
-		final long syncInterval = mPreferences.getLong(PREF_SYNC_INTERVAL,
-			DEFAULT_SYNC_INTERVAL);
-
-		if (lastSyncMillis == -1
-			|| (System.currentTimeMillis() - lastSyncMillis) > syncInterval) {
+		if (lastSyncMillis == -1) {
 			return false;
-		} else {
-			return true;
 		}
 
+		final long syncInterval = mPreferences.getLong(PREF_SYNC_INTERVAL,
+			DEFAULT_SYNC_INTERVAL);
+		return System.currentTimeMillis()
+			< mScheduler.getNextSyncTime(lastSyncMillis + syncInterval)
+			&& hasRates();
+
 	}
 
 	/**
-	 * Updates last sync time to current time millis,
+	 * Updates last sync time to current time millis and schedules the next
+	 * sync.
+	 * 
+	 * @param movement mean relative change of rates since last sync, NaN
+	 * if not known
 	 */
-	private void updateSyncTime() {
+	private void updateSyncTime(double movement) {
+
+		final long now = System.currentTimeMillis();
+		final long lastSyncMillis = mPreferences.getLong(PREF_LAST_SYNC, -1);
+
+		final long nextSync = mScheduler.onSync(now,
+			lastSyncMillis != -1 ? now - lastSyncMillis : -1, movement);
+		Log.d(TAG, "next sync at " + nextSync);
 
-		mPreferences.edit().putLong(PREF_LAST_SYNC, System.currentTimeMillis()).
-			commit();
+		mPreferences.edit().putLong(PREF_LAST_SYNC, now).commit();
 
 	}
 
@@ -237,6 +702,20 @@ public class CurrencySyncService extends IntentService {
 
 		mReceiver = intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
 
+		synchronized (mSyncLock) {
+			mSyncing = true;
+			mSyncForced = isForced(intent);
+			mSyncReplay = isReplay(intent);
+		}
+
+	}
+
+	private static boolean isForced(Intent intent) {
+		return intent.hasExtra(EXTRA_FORCE);
+	}
+
+	private static boolean isReplay(Intent intent) {
+		return intent.getBooleanExtra(EXTRA_REPLAY, false);
 	}
 
 	private void sendEvent(int eventId) {
@@ -245,16 +724,94 @@ public class CurrencySyncService extends IntentService {
 
 	}
 
-	private void sendEvent(int eventId, Exception e) {
+	private void sendFinished(int rowsWritten) {
+
+		Log.i(TAG, "bytes received: " + mBatch.getBytesReceived()
+			+ ", decoded: " + mBatch.getBytesDecoded());
+
+		final Bundle args = new Bundle(3);
+		args.putInt(EXTRA_ROWS_WRITTEN, rowsWritten);
+		args.putLong(EXTRA_BYTES_RECEIVED, mBatch.getBytesReceived());
+		args.putLong(EXTRA_BYTES_DECODED, mBatch.getBytesDecoded());
+		sendEvent(RESULT_CODE_FINISHED, args);
+
+	}
+
+	private void sendRetryEvent(int eventId, long retryTime, Exception e) {
 
-		final Bundle args = new Bundle(1);
-		args.putString(EXTRA_ERROR_MESSAGE, e.getMessage());
+		final Bundle args = new Bundle(2);
+		args.putLong(EXTRA_RETRY_TIME, retryTime);
+		if (e != null) {
+			args.putString(EXTRA_ERROR_MESSAGE, e.getMessage());
+		}
 		sendEvent(eventId, args);
 
 	}
 
+	/**
+	 * Returns time of the next scheduled sync.
+	 * 
+	 * @param context
+	 * @return time in millis, -1 if rates have not been synced yet
+	 */
+	public static long getNextSyncTime(Context context) {
+
+		return context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).
+			getLong(SyncScheduler.PREF_NEXT_SYNC, -1);
+
+	}
+
+	/**
+	 * Returns number of sync requests that were served by a sync already
+	 * running.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public static int getCoalescedCount(Context context) {
+
+		return context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).
+			getInt(PREF_COALESCED_COUNT, 0);
+
+	}
+
+	/**
+	 * Ends sync and sends its result to receivers attached to it.
+	 */
+	private void sendAttached(int eventId, Bundle args) {
+
+		final ResultReceiver[] receivers;
+		final int coalesced;
+
+		synchronized (mSyncLock) {
+			mSyncing = false;
+			receivers = mAttachedReceivers.toArray(
+				new ResultReceiver[mAttachedReceivers.size()]);
+			mAttachedReceivers.clear();
+			coalesced = mCoalesced;
+			mCoalesced = 0;
+		}
+
+		for (ResultReceiver receiver : receivers) {
+			receiver.send(eventId, args);
+		}
+
+		if (coalesced > 0) {
+			Log.i(TAG, "coalesced requests: " + coalesced);
+			mPreferences.edit().putInt(PREF_COALESCED_COUNT,
+				mPreferences.getInt(PREF_COALESCED_COUNT, 0) + coalesced).
+				commit();
+		}
+
+	}
+
 	private void sendEvent(int eventId, Bundle args) {
 
+		// any other event ends the sync
+		if (eventId != RESULT_CODE_RUNNING) {
+			sendAttached(eventId, args);
+		}
+
 		if (mReceiver != null) {
 			mReceiver.send(eventId, args);
 		} else {
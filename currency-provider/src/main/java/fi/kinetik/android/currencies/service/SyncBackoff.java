@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.service;
+
+import android.content.SharedPreferences;
+import fi.kinetik.android.currencies.spi.ProviderHealth;
+import java.util.Random;
+
+/**
+ * Per provider retry state of failed syncs. Each consecutive failure 
+ * doubles the time until the next attempt, with jitter so that a fleet of 
+ * devices does not retry in lockstep. After {@link #CIRCUIT_THRESHOLD} 
+ * failures the circuit opens and the provider is not tried for 
+ * {@link #CIRCUIT_OPEN_INTERVAL}, after which a single attempt either 
+ * closes the circuit or opens it again.
+ * 
+ * State is kept in the sync preferences so it survives the service.
+ * SPIs that load from several providers back off each of them through a
+ * {@link Tracker}.
+ */
+class SyncBackoff {
+
+	/**
+	 * Delay after the first failure. 30 seconds.
+	 */
+	static final long BASE_DELAY = 30 * 1000;
+
+	/**
+	 * Upper bound of the delay while circuit is closed. 30 minutes.
+	 */
+	static final long MAX_DELAY = 30 * 60 * 1000;
+
+	/**
+	 * Number of consecutive failures that opens the circuit.
+	 */
+	static final int CIRCUIT_THRESHOLD = 5;
+
+	/**
+	 * Time the circuit stays open. 2 hours.
+	 */
+	static final long CIRCUIT_OPEN_INTERVAL = 2 * 60 * 60 * 1000;
+
+	private static final String PREF_FAILURES = "failures.";
+
+	private static final String PREF_RETRY_TIME = "retryTime.";
+
+	private final SharedPreferences mPreferences;
+
+	private final Random mRandom = new Random();
+
+	SyncBackoff(SharedPreferences preferences) {
+		mPreferences = preferences;
+	}
+
+	/**
+	 * Returns time before which provider should not be tried.
+	 * 
+	 * @param provider
+	 * @return time in millis, 0 if provider may be tried now
+	 */
+	long getRetryTime(String provider) {
+
+		return mPreferences.getLong(PREF_RETRY_TIME + provider, 0);
+
+	}
+
+	/**
+	 * Returns true if circuit of provider is open.
+	 * 
+	 * @param provider
+	 * @return
+	 */
+	boolean isCircuitOpen(String provider) {
+
+		return mPreferences.getInt(PREF_FAILURES + provider, 0)
+			>= CIRCUIT_THRESHOLD;
+
+	}
+
+	/**
+	 * Clears failures of provider.
+	 * 
+	 * @param provider
+	 */
+	void onSuccess(String provider) {
+
+		if (mPreferences.contains(PREF_FAILURES + provider)) {
+			mPreferences.edit().
+				remove(PREF_FAILURES + provider).
+				remove(PREF_RETRY_TIME + provider).
+				commit();
+		}
+
+	}
+
+	/**
+	 * Records failure of provider.
+	 * 
+	 * @param provider
+	 * @param now current time millis
+	 * @return time in millis when provider may be tried again
+	 */
+	long onFailure(String provider, long now) {
+
+		final int failures = mPreferences.getInt(PREF_FAILURES + provider, 0)
+			+ 1;
+
+		final long delay;
+		if (failures >= CIRCUIT_THRESHOLD) {
+			delay = CIRCUIT_OPEN_INTERVAL;
+		} else {
+			delay = Math.min(BASE_DELAY << (failures - 1), MAX_DELAY);
+		}
+
+		// jitter within [delay / 2, delay * 3 / 2)
+		final long retryTime = now + delay / 2
+			+ (long) (mRandom.nextDouble() * delay);
+
+		mPreferences.edit().
+			putInt(PREF_FAILURES + provider, failures).
+			putLong(PREF_RETRY_TIME + provider, retryTime).
+			commit();
+
+		return retryTime;
+
+	}
+
+	/**
+	 * Returns tracker of the providers an SPI loads from during one sync.
+	 * 
+	 * @return
+	 */
+	Tracker newTracker() {
+		return new Tracker();
+	}
+
+	/**
+	 * Backs off the providers an SPI reports one by one and keeps the 
+	 * earliest time one of them may be tried again.
+	 */
+	final class Tracker implements ProviderHealth {
+
+		private boolean mReported;
+
+		private long mRetryTime = Long.MAX_VALUE;
+
+		public boolean isBackingOff(String provider) {
+
+			mReported = true;
+			final long retryTime = SyncBackoff.this.getRetryTime(provider);
+			if (System.currentTimeMillis() < retryTime) {
+				mRetryTime = Math.min(mRetryTime, retryTime);
+				return true;
+			}
+			return false;
+
+		}
+
+		public void onSuccess(String provider) {
+
+			mReported = true;
+			SyncBackoff.this.onSuccess(provider);
+
+		}
+
+		public void onFailure(String provider) {
+
+			mReported = true;
+			mRetryTime = Math.min(mRetryTime, SyncBackoff.this.onFailure(
+				provider, System.currentTimeMillis()));
+
+		}
+
+		/**
+		 * Returns true if the SPI reported its providers.
+		 * 
+		 * @return
+		 */
+		boolean isReported() {
+			return mReported;
+		}
+
+		/**
+		 * Returns the earliest time a provider that failed or is backing off
+		 * may be tried again.
+		 * 
+		 * @return time in millis, Long.MAX_VALUE if none did
+		 */
+		long getRetryTime() {
+			return mRetryTime;
+		}
+
+	}
+
+}
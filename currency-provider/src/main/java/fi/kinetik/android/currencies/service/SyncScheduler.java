@@ -0,0 +1,286 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.service;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+/**
+ * Schedules the next sync from how fast rates have been moving. Each sync
+ * reports the mean relative change of the rates it loaded, which is kept as
+ * an exponentially weighted average of change per hour. The next sync is
+ * due when rates are expected to have moved by {@link #TARGET_MOVEMENT}, so
+ * syncs get more frequent as rates move and less frequent as they settle.
+ * Syncs that would fall on the weekend, while currency markets are closed,
+ * are moved to the market close or open.
+ *
+ * The alarm is inexact so that it is delivered together with other 
+ * wakeups. It repeats at one of the intervals AlarmManager batches, the
+ * longest one that does not exceed the computed interval, in case a sync 
+ * gets lost. Each sync replaces it.
+ *
+ * Like {@link SyncBackoff}, keeps its state in the sync preferences.
+ */
+class SyncScheduler {
+
+	/**
+	 * Shortest interval between scheduled syncs. 30 minutes.
+	 */
+	static final long MIN_INTERVAL = AlarmManager.INTERVAL_HALF_HOUR;
+
+	/**
+	 * Longest interval between scheduled syncs. 1 day.
+	 */
+	static final long MAX_INTERVAL = AlarmManager.INTERVAL_DAY;
+
+	/**
+	 * Mean relative change of rates expected between syncs. 0.2%.
+	 */
+	static final double TARGET_MOVEMENT = 0.002;
+
+	/**
+	 * Weight of the latest sample in the average change.
+	 */
+	static final double SMOOTHING = 0.3;
+
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private static final long WEEK = 7 * 24 * HOUR;
+
+	/**
+	 * Market close, Friday 22:00 UTC, as offset from the start of a week
+	 * beginning at epoch, Thursday 00:00 UTC.
+	 */
+	private static final long MARKET_CLOSE = 46 * HOUR;
+
+	/**
+	 * Market open, Sunday 22:00 UTC, as offset from the start of a week.
+	 */
+	private static final long MARKET_OPEN = 94 * HOUR;
+
+	/**
+	 * Intervals inexact alarms are batched at, longest first.
+	 */
+	private static final long[] ALARM_INTERVALS = new long[]{
+		AlarmManager.INTERVAL_DAY,
+		AlarmManager.INTERVAL_HALF_DAY,
+		AlarmManager.INTERVAL_HOUR,
+		AlarmManager.INTERVAL_HALF_HOUR,
+		AlarmManager.INTERVAL_FIFTEEN_MINUTES
+	};
+
+	static final String PREF_NEXT_SYNC = "nextSync";
+
+	private static final String PREF_CHANGE_RATE = "changeRate";
+
+	private static final String PREF_ALARM_INTERVAL = "alarmInterval";
+
+	/**
+	 * Request code of the scheduled sync, distinct from the one of retries
+	 * so that the two alarms do not replace each other.
+	 */
+	private static final int REQUEST_SCHEDULED = 1;
+
+	private final Context mContext;
+
+	private final SharedPreferences mPreferences;
+
+	SyncScheduler(Context context, SharedPreferences preferences) {
+		mContext = context;
+		mPreferences = preferences;
+	}
+
+	/**
+	 * Returns time of the next scheduled sync.
+	 *
+	 * @param defaultTime time to return if none is scheduled
+	 * @return time in millis
+	 */
+	long getNextSyncTime(long defaultTime) {
+
+		return mPreferences.getLong(PREF_NEXT_SYNC, defaultTime);
+
+	}
+
+	/**
+	 * Records change of rates in a sync and schedules the next one.
+	 *
+	 * @param now current time millis
+	 * @param elapsed millis since previous sync, -1 if there was none
+	 * @param movement mean relative change of rates since previous sync,
+	 * NaN if not known
+	 * @return time in millis of the next sync
+	 */
+	long onSync(long now, long elapsed, double movement) {
+
+		final double changeRate = addSample(
+			mPreferences.getFloat(PREF_CHANGE_RATE, -1), elapsed, movement);
+		final long alarmInterval = quantize(computeInterval(changeRate));
+		final long nextSync = getNextSyncTime(now, changeRate);
+
+		mPreferences.edit().
+			putFloat(PREF_CHANGE_RATE, (float) changeRate).
+			putLong(PREF_ALARM_INTERVAL, alarmInterval).
+			putLong(PREF_NEXT_SYNC, nextSync).
+			commit();
+
+		setAlarm(nextSync, alarmInterval);
+		return nextSync;
+
+	}
+
+	/**
+	 * Sets the alarm of the next scheduled sync again, alarms do not
+	 * survive reboots.
+	 *
+	 * @param now current time millis
+	 */
+	void ensureScheduled(long now) {
+
+		final long nextSync = mPreferences.getLong(PREF_NEXT_SYNC, -1);
+		if (nextSync != -1) {
+			setAlarm(Math.max(nextSync, now), mPreferences.getLong(
+				PREF_ALARM_INTERVAL, MAX_INTERVAL));
+		}
+
+	}
+
+	private void setAlarm(long time, long interval) {
+
+		final AlarmManager alarmManager = (AlarmManager)
+			mContext.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.setInexactRepeating(AlarmManager.RTC, time, interval,
+			PendingIntent.getService(mContext, REQUEST_SCHEDULED,
+			new Intent(CurrencySyncService.SYNC_ACTION),
+			PendingIntent.FLAG_UPDATE_CURRENT));
+
+	}
+
+	/**
+	 * Adds change of rates in a sync to the average change per hour.
+	 *
+	 * @param changeRate previous average, negative if there is none
+	 * @param elapsed millis since previous sync, -1 if there was none
+	 * @param movement mean relative change of rates since previous sync,
+	 * NaN if not known
+	 * @return average change per hour, negative if not known
+	 */
+	static double addSample(double changeRate, long elapsed,
+		double movement) {
+
+		if (elapsed <= 0 || Double.isNaN(movement)) {
+			return changeRate;
+		}
+		// longer gaps are mostly weekends and would dilute the sample
+		final double hours = (double) Math.min(elapsed, MAX_INTERVAL) / HOUR;
+		return average(changeRate, movement / hours);
+
+	}
+
+	/**
+	 * Returns time of the sync following one at <code>now</code>.
+	 *
+	 * @param now
+	 * @param changeRate mean relative change of rates per hour, negative
+	 * if not known
+	 * @return time in millis
+	 */
+	static long getNextSyncTime(long now, double changeRate) {
+
+		return skipMarketClose(now, now + computeInterval(changeRate));
+
+	}
+
+	/**
+	 * Adds sample to weighted average.
+	 *
+	 * @param average previous average, negative if there is none
+	 * @param sample
+	 * @return
+	 */
+	static double average(double average, double sample) {
+
+		return average < 0 ? sample
+			: SMOOTHING * sample + (1 - SMOOTHING) * average;
+
+	}
+
+	/**
+	 * Returns interval in which rates are expected to move by
+	 * TARGET_MOVEMENT.
+	 *
+	 * @param changeRate mean relative change of rates per hour, negative
+	 * if not known
+	 * @return interval in millis within [MIN_INTERVAL, MAX_INTERVAL]
+	 */
+	static long computeInterval(double changeRate) {
+
+		if (changeRate < 0) {
+			// nothing known yet, poll at the former fixed interval
+			return CurrencySyncService.DEFAULT_SYNC_INTERVAL;
+		}
+		if (changeRate == 0) {
+			return MAX_INTERVAL;
+		}
+
+		final double interval = TARGET_MOVEMENT / changeRate * HOUR;
+		return (long) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+
+	}
+
+	/**
+	 * Returns the longest alarm interval that does not exceed the given one.
+	 *
+	 * @param interval
+	 * @return
+	 */
+	static long quantize(long interval) {
+
+		for (long alarmInterval : ALARM_INTERVALS) {
+			if (alarmInterval <= interval) {
+				return alarmInterval;
+			}
+		}
+		return ALARM_INTERVALS[ALARM_INTERVALS.length - 1];
+
+	}
+
+	/**
+	 * Moves time that falls between market close on Friday and open on
+	 * Sunday to the open, or to the close if the previous sync was before
+	 * it so that the closing rates are not left out over the weekend. Hours
+	 * are those of the currency markets in UTC, daylight saving shifts are
+	 * not followed.
+	 *
+	 * @param now time of the previous sync
+	 * @param time
+	 * @return
+	 */
+	static long skipMarketClose(long now, long time) {
+
+		final long offset = time % WEEK;
+		if (offset >= MARKET_CLOSE && offset < MARKET_OPEN) {
+			final long close = time - offset + MARKET_CLOSE;
+			return now < close ? close : time + MARKET_OPEN - offset;
+		}
+		return time;
+
+	}
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.util.Log;
+import fi.kinetik.android.currencies.util.CurrencyCode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads rates of several SPIs in parallel and merges them.
+ *
+ * @see CompositeRatesSpiFactory
+ */
+class CompositeRatesSpi implements RatesSpi {
+
+    private static final String TAG = "CompositeRatesSpi";
+
+    private final ExecutorService mExecutor;
+
+    private final RatesSpi[] mSpis;
+
+    private final String[] mBases;
+
+    private final String mBaseCurrency;
+
+    private final boolean mMergeByFreshness;
+
+    private final long mTimeout;
+
+    CompositeRatesSpi(ExecutorService executor, RatesSpi[] spis,
+	    String[] bases, String baseCurrency, boolean mergeByFreshness,
+	    long timeout) {
+
+	mExecutor = executor;
+	mSpis = spis;
+	mBases = bases;
+	mBaseCurrency = CurrencyCode.toUpperCase(baseCurrency);
+	mMergeByFreshness = mergeByFreshness;
+	mTimeout = timeout;
+
+    }
+
+    public void loadData(RateBatch batch) throws IOException,
+	    RatesSpiException {
+
+	final List<Callable<RateBatch>> tasks =
+		new ArrayList<Callable<RateBatch>>(mSpis.length);
+	final List<Integer> started = new ArrayList<Integer>(mSpis.length);
+	final boolean replay = batch.isReplay();
+	// replays do not touch the network, backoff does not apply
+	final ProviderHealth health = replay ? null : batch.getHealth();
+
+	for (int i = 0; i < mSpis.length; i++) {
+
+	    final RatesSpi spi = mSpis[i];
+	    if (health != null && health.isBackingOff(spi.getProviderName())) {
+		Log.d(TAG, spi.getProviderName() + " backing off, skipped");
+		batch.setPartial(true);
+		continue;
+	    }
+
+	    started.add(i);
+	    tasks.add(new Callable<RateBatch>() {
+
+		public RateBatch call() throws Exception {
+		    // loaded in full, a provider that is not modified would
+		    // otherwise leave its currencies out of the merge
+		    final RateBatch loaded = new RateBatch();
+		    loaded.setReplay(replay);
+		    spi.loadData(loaded);
+		    return loaded;
+		}
+
+	    });
+	}
+
+	final List<Future<RateBatch>> futures;
+	try {
+	    futures = mExecutor.invokeAll(tasks, mTimeout, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted");
+	}
+
+	// loads past the deadline are interrupted rather than left running,
+	// network reads of the SPIs time out on their own
+	for (Future<RateBatch> future : futures) {
+	    if (!future.isDone()) {
+		future.cancel(true);
+	    }
+	}
+
+	final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+	Exception failure = null;
+	int loaded = 0;
+
+	for (int n = 0; n < started.size(); n++) {
+
+	    final int i = started.get(n);
+	    final Future<RateBatch> future = futures.get(n);
+	    final String provider = mSpis[i].getProviderName();
+
+	    if (future.isCancelled()) {
+		Log.w(TAG, provider + " did not finish within " + mTimeout
+			+ "ms");
+		batch.setPartial(true);
+		if (health != null) {
+		    health.onFailure(provider);
+		}
+		continue;
+	    }
+
+	    try {
+		if (merge(batch, indexes, future.get(), mBases[i], mBaseCurrency,
+			mMergeByFreshness, provider)) {
+		    loaded++;
+		    if (health != null) {
+			health.onSuccess(provider);
+		    }
+		} else {
+		    batch.setPartial(true);
+		}
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new IOException("interrupted");
+	    } catch (ExecutionException e) {
+		Log.w(TAG, provider + " failed", e.getCause());
+		batch.setPartial(true);
+		if (health != null) {
+		    health.onFailure(provider);
+		}
+		if (failure == null && e.getCause() instanceof Exception) {
+		    failure = (Exception) e.getCause();
+		}
+	    }
+
+	}
+
+	// a replay without cached payloads is left empty
+	if (loaded == 0 && !(replay && failure == null)) {
+	    throw new RatesSpiException("no provider loaded rates", failure);
+	}
+
+    }
+
+    /**
+     * Rebases loaded rates to base currency and merges them into batch.
+     *
+     * @param batch
+     * @param indexes indexes of currencies in batch
+     * @param loaded
+     * @param base base currency of loaded rates
+     * @param baseCurrency upper case base currency of batch
+     * @param mergeByFreshness
+     * @param provider
+     * @return false if rates could not be rebased
+     */
+    static boolean merge(RateBatch batch, HashMap<String, Integer> indexes,
+	    RateBatch loaded, String base, String baseCurrency,
+	    boolean mergeByFreshness, String provider) {
+
+	if (loaded.isEmpty()) {
+	    return false;
+	}
+
+	// rate of our base against the provider's base
+	double baseRate = 1.0;
+	if (!baseCurrency.equals(CurrencyCode.toUpperCase(base))) {
+	    final int i = loaded.indexOf(baseCurrency);
+	    if (i == -1 || loaded.getRate(i) <= 0) {
+		Log.w(TAG, provider + " has no rate for " + baseCurrency);
+		return false;
+	    }
+	    baseRate = loaded.getRate(i);
+	    if (loaded.indexOf(base) == -1) {
+		mergeRate(batch, indexes, base, loaded.getUpdated(i),
+			1.0 / baseRate, mergeByFreshness, provider);
+	    }
+	}
+
+	for (int i = 0; i < loaded.size(); i++) {
+	    mergeRate(batch, indexes, loaded.getCurrency(i),
+		    loaded.getUpdated(i), loaded.getRate(i) / baseRate,
+		    mergeByFreshness, loaded.getProvider(i) != null
+		    ? loaded.getProvider(i) : provider);
+	}
+	return true;
+
+    }
+
+    private static void mergeRate(RateBatch batch,
+	    HashMap<String, Integer> indexes, String currency, long updated,
+	    double rate, boolean mergeByFreshness, String provider) {
+
+	currency = CurrencyCode.toUpperCase(currency);
+	final Integer index = indexes.get(currency);
+
+	if (index == null) {
+	    indexes.put(currency, batch.size());
+	    batch.add(currency, updated, rate, provider);
+	} else if (mergeByFreshness && updated > batch.getUpdated(index)) {
+	    batch.set(index, updated, rate, provider);
+	}
+
+    }
+
+    public String getProviderName() {
+	return CompositeRatesSpiFactory.PROVIDER_NAME;
+    }
+
+}
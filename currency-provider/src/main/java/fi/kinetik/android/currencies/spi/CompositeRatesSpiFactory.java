@@ -0,0 +1,180 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.content.Context;
+import android.text.TextUtils;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.Properties;
+
+/**
+ * <p>Factory that loads rates from several SPI implementations in parallel
+ * and merges them into a single batch. To use it set 
+ * <code>rates_spi.factory</code> to this class and list the factories to
+ * combine, in priority order, in <code>composite.factories</code>. All
+ * factories are created with the same properties.</p>
+ * 
+ * <p>Factories are loaded on a bounded pool of threads within a deadline,
+ * a provider that fails or does not finish in time is left out of the
+ * merged batch. Rates of every provider are rebased to the base currency 
+ * of the first factory and merged per currency either by priority (first 
+ * provider that has a rate wins) or by freshness (latest rate wins).</p>
+ */
+public class CompositeRatesSpiFactory extends RatesSpiFactory {
+
+    public static final String PROVIDER_NAME = "Composite";
+
+    private static final String PROPERTY_PREFIX = "composite.";
+
+    /**
+     * Comma separated class names of the factories to combine, highest
+     * priority first.
+     */
+    public static final String PROPERTY_FACTORIES = PROPERTY_PREFIX
+	    + "factories";
+
+    /**
+     * How rates of the same currency are merged, either 
+     * {@link #MERGE_PRIORITY} or {@link #MERGE_FRESHNESS}.
+     */
+    public static final String PROPERTY_MERGE = PROPERTY_PREFIX + "merge";
+
+    /**
+     * Deadline in millis for all factories to load their rates.
+     */
+    public static final String PROPERTY_TIMEOUT = PROPERTY_PREFIX + "timeout";
+
+    /**
+     * Maximum number of factories loading at the same time.
+     */
+    public static final String PROPERTY_THREADS = PROPERTY_PREFIX + "threads";
+
+    public static final String MERGE_PRIORITY = "priority";
+
+    public static final String MERGE_FRESHNESS = "freshness";
+
+    /**
+     * Default deadline. 30 seconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+    private static final int DEFAULT_MAX_THREADS = 4;
+
+    private RatesSpiFactory[] mFactories;
+
+    private ExecutorService mExecutor;
+
+    private boolean mMergeByFreshness;
+
+    private long mTimeout;
+
+    @Override
+    protected void onCreate(Context context, Properties props) throws
+	    RatesSpiException {
+
+	final String classNames = props.getProperty(PROPERTY_FACTORIES);
+	if (TextUtils.isEmpty(classNames)) {
+	    throw new RatesSpiException(PROPERTY_FACTORIES + " not set");
+	}
+
+	final String[] classes = classNames.split(",");
+	mFactories = new RatesSpiFactory[classes.length];
+	for (int i = 0; i < classes.length; i++) {
+	    mFactories[i] = newFactory(classes[i].trim());
+	    mFactories[i].onCreate(context, props);
+	}
+
+	final String merge = props.getProperty(PROPERTY_MERGE, MERGE_PRIORITY);
+	if (MERGE_FRESHNESS.equals(merge)) {
+	    mMergeByFreshness = true;
+	} else if (!MERGE_PRIORITY.equals(merge)) {
+	    throw new RatesSpiException("bad " + PROPERTY_MERGE + ": " + merge);
+	}
+
+	try {
+	    mTimeout = Long.parseLong(props.getProperty(PROPERTY_TIMEOUT,
+		    String.valueOf(DEFAULT_TIMEOUT)));
+	    final int threads = Integer.parseInt(props.getProperty(
+		    PROPERTY_THREADS, String.valueOf(Math.min(
+		    mFactories.length, DEFAULT_MAX_THREADS))));
+	    mExecutor = newExecutor(threads);
+	} catch (NumberFormatException e) {
+	    throw new RatesSpiException("bad composite properties", e);
+	}
+
+    }
+
+    @Override
+    public RatesSpi newSpi() {
+
+	final RatesSpi[] spis = new RatesSpi[mFactories.length];
+	final String[] bases = new String[mFactories.length];
+	for (int i = 0; i < mFactories.length; i++) {
+	    spis[i] = mFactories[i].newSpi();
+	    bases[i] = mFactories[i].getBaseCurrency();
+	}
+
+	return new CompositeRatesSpi(mExecutor, spis, bases,
+		getBaseCurrency(), mMergeByFreshness, mTimeout);
+
+    }
+
+    @Override
+    public String getBaseCurrency() {
+	return mFactories[0].getBaseCurrency();
+    }
+
+    /**
+     * Returns network and replay capabilities of any of the combined 
+     * factories, factories are always loaded in full.
+     */
+    @Override
+    public int getCapabilities() {
+
+	int capabilities = 0;
+	for (RatesSpiFactory factory : mFactories) {
+	    capabilities |= factory.getCapabilities();
+	}
+	return capabilities & ~CAPABILITY_CONDITIONAL;
+
+    }
+
+    /**
+     * Creates pool of daemon threads that are released when idle.
+     */
+    private static ExecutorService newExecutor(int threads) {
+
+	final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+		threads, 30, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+	    public Thread newThread(Runnable r) {
+		final Thread thread = new Thread(r, "RatesSpiLoader");
+		thread.setDaemon(true);
+		return thread;
+	    }
+
+	});
+	executor.allowCoreThreadTimeOut(true);
+	return executor;
+
+    }
+
+}
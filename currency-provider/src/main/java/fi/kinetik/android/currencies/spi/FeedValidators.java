@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.net.URLConnection;
+
+/**
+ * Stores HTTP cache validators (ETag and Last-Modified) of feeds so that
+ * unchanged feeds can be requested conditionally. SPI implementations
+ * add validators to requests, the caller saves the new ones only after the
+ * loaded rates are written so that a failed write is not skipped next time
+ * as not modified.
+ *
+ * @see RateBatch#setValidators(String, String, String)
+ */
+public final class FeedValidators {
+
+    private static final String PREFERENCES_NAME = "FeedValidators";
+
+    private static final String SUFFIX_ETAG = ".etag";
+
+    private static final String SUFFIX_LAST_MODIFIED = ".lastModified";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final String HEADER_ETAG = "ETag";
+
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private FeedValidators() {
+	// N/A
+    }
+
+    /**
+     * Adds stored validators of feed as conditional request headers.
+     *
+     * @param context
+     * @param connection unconnected connection to the feed
+     * @param key feed identifier, typically the feed url
+     */
+    public static void addConditions(Context context,
+	    URLConnection connection, String key) {
+	addConditions(getPreferences(context), connection, key);
+    }
+
+    /**
+     * Adds validators of feed stored in preferences as conditional request
+     * headers.
+     *
+     * @param prefs
+     * @param connection unconnected connection to the feed
+     * @param key feed identifier, typically the feed url
+     */
+    public static void addConditions(SharedPreferences prefs,
+	    URLConnection connection, String key) {
+
+	final String eTag = prefs.getString(key + SUFFIX_ETAG, null);
+	final String lastModified =
+		prefs.getString(key + SUFFIX_LAST_MODIFIED, null);
+
+	if (eTag != null) {
+	    connection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+	}
+	if (lastModified != null) {
+	    connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE,
+		    lastModified);
+	}
+
+    }
+
+    /**
+     * Saves validators of feed, a null validator is removed.
+     *
+     * @param context
+     * @param key feed identifier
+     * @param eTag
+     * @param lastModified
+     */
+    public static void save(Context context, String key, String eTag,
+	    String lastModified) {
+	save(getPreferences(context), key, eTag, lastModified);
+    }
+
+    /**
+     * Saves validators of feed into preferences, a null validator is 
+     * removed.
+     *
+     * @param prefs
+     * @param key feed identifier
+     * @param eTag
+     * @param lastModified
+     */
+    public static void save(SharedPreferences prefs, String key, String eTag,
+	    String lastModified) {
+
+	final SharedPreferences.Editor editor = prefs.edit();
+
+	if (eTag != null) {
+	    editor.putString(key + SUFFIX_ETAG, eTag);
+	} else {
+	    editor.remove(key + SUFFIX_ETAG);
+	}
+
+	if (lastModified != null) {
+	    editor.putString(key + SUFFIX_LAST_MODIFIED, lastModified);
+	} else {
+	    editor.remove(key + SUFFIX_LAST_MODIFIED);
+	}
+
+	editor.commit();
+
+    }
+
+    /**
+     * Returns preferences validators are stored in.
+     *
+     * @param context
+     * @return
+     */
+    public static SharedPreferences getPreferences(Context context) {
+	return context.getSharedPreferences(PREFERENCES_NAME,
+		Context.MODE_PRIVATE);
+    }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.content.Context;
+import fi.kinetik.android.currencies.util.CountingInputStream;
+import fi.kinetik.android.currencies.util.IOUtils;
+import fi.kinetik.android.currencies.util.TeeInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the last raw payloads SPI implementations downloaded, per provider,
+ * so that rates can be parsed again without the network: to recover rates
+ * after the database is lost and to replay feeds for offline testing.
+ *
+ * Payloads are stored gzip compressed under the files directory, one file
+ * each, and listed newest first in an index file of the provider. At most
+ * {@link #MAX_ENTRIES} payloads and {@link #MAX_BYTES} compressed bytes are
+ * kept per provider, the newest payload is kept regardless of its size.
+ *
+ * @see RateBatch#setReplay(boolean)
+ */
+public final class PayloadCache {
+
+    /**
+     * Number of payloads kept per provider.
+     */
+    public static final int MAX_ENTRIES = 5;
+
+    /**
+     * Compressed bytes kept per provider. 256 kB.
+     */
+    public static final long MAX_BYTES = 256 * 1024;
+
+    private static final String DIRECTORY_NAME = "payloads";
+
+    private static final String INDEX_NAME = "index";
+
+    private static final String SUFFIX = ".gz";
+
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private PayloadCache() {
+	// N/A
+    }
+
+    /**
+     * Starts recording a payload of provider. The payload is copied into
+     * the cache as it is read through {@link Recorder#wrap(InputStream)}
+     * and added once committed.
+     *
+     * @param context
+     * @param provider
+     * @return
+     * @throws IOException
+     */
+    public static Recorder record(Context context, String provider)
+	    throws IOException {
+
+	final File dir = getDirectory(context, provider);
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("failed to create " + dir);
+	}
+	return new Recorder(dir);
+
+    }
+
+    /**
+     * Returns download times of the payloads cached for provider.
+     *
+     * @param context
+     * @param provider
+     * @return times in millis, newest first
+     * @throws IOException
+     */
+    public static long[] getTimes(Context context, String provider)
+	    throws IOException {
+
+	final ArrayList<Entry> entries;
+	synchronized (PayloadCache.class) {
+	    entries = readIndex(getDirectory(context, provider));
+	}
+
+	final long[] times = new long[entries.size()];
+	for (int i = 0; i < times.length; i++) {
+	    times[i] = entries.get(i).time;
+	}
+	return times;
+
+    }
+
+    /**
+     * Opens the newest payload cached for provider.
+     *
+     * @param context
+     * @param provider
+     * @return decompressed payload or null if there is none
+     * @throws IOException
+     */
+    public static InputStream openLatest(Context context, String provider)
+	    throws IOException {
+
+	final long[] times = getTimes(context, provider);
+	return times.length > 0 ? open(context, provider, times[0]) : null;
+
+    }
+
+    /**
+     * Opens a payload cached for provider.
+     *
+     * @param context
+     * @param provider
+     * @param time download time of the payload
+     * @return decompressed payload or null if there is none
+     * @throws IOException
+     */
+    public static InputStream open(Context context, String provider,
+	    long time) throws IOException {
+
+	final File file = new File(getDirectory(context, provider),
+		time + SUFFIX);
+	final InputStream in;
+	try {
+	    in = new FileInputStream(file);
+	} catch (FileNotFoundException e) {
+	    return null;
+	}
+
+	try {
+	    return new GZIPInputStream(in);
+	} catch (IOException e) {
+	    IOUtils.close(in);
+	    throw e;
+	}
+
+    }
+
+    /**
+     * Copies a payload into the cache as it is read.
+     */
+    public static final class Recorder {
+
+	private final File mDir;
+
+	private final File mTemp;
+
+	private GZIPOutputStream mOut;
+
+	private TeeInputStream mTee;
+
+	private CountingInputStream mIn;
+
+	private Recorder(File dir) {
+	    mDir = dir;
+	    mTemp = new File(dir, System.nanoTime() + SUFFIX_TEMP);
+	}
+
+	/**
+	 * Wraps decoded payload stream so that the bytes read from it are
+	 * recorded.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream wrap(InputStream in) throws IOException {
+
+	    mOut = new GZIPOutputStream(new FileOutputStream(mTemp));
+	    mTee = new TeeInputStream(in, mOut);
+	    mIn = new CountingInputStream(mTee);
+	    return mIn;
+
+	}
+
+	/**
+	 * Adds the payload to the cache, reading what is left of it first,
+	 * and drops the oldest payloads past the limits. The payload is 
+	 * dropped if it could not be recorded in full.
+	 *
+	 * @param time download time of the payload
+	 * @throws IOException
+	 */
+	public void commit(long time) throws IOException {
+
+	    if (mOut == null) {
+		throw new IllegalStateException("nothing recorded");
+	    }
+
+	    try {
+		final byte[] buffer = new byte[1024];
+		while (mIn.read(buffer) != -1) {
+		    // copied through
+		}
+		if (mTee.getOutError() != null) {
+		    throw mTee.getOutError();
+		}
+		mOut.finish();
+		mOut.close();
+	    } catch (IOException e) {
+		abort();
+		throw e;
+	    }
+
+	    synchronized (PayloadCache.class) {
+
+		final File file = new File(mDir, time + SUFFIX);
+		if (!mTemp.renameTo(file)) {
+		    mTemp.delete();
+		    throw new IOException("failed to store " + file);
+		}
+
+		final ArrayList<Entry> entries = readIndex(mDir);
+		for (int i = entries.size() - 1; i >= 0; i--) {
+		    if (entries.get(i).time == time) {
+			entries.remove(i);
+		    }
+		}
+		entries.add(0, new Entry(time, mIn.getCount(), file.length()));
+
+		// newest is kept even if it alone is over the limit
+		long bytes = entries.get(0).storedSize;
+		int keep = 1;
+		while (keep < entries.size() && keep < MAX_ENTRIES
+			&& bytes + entries.get(keep).storedSize <= MAX_BYTES) {
+		    bytes += entries.get(keep).storedSize;
+		    keep++;
+		}
+
+		final ArrayList<Entry> evicted = new ArrayList<Entry>(
+			entries.subList(keep, entries.size()));
+		entries.subList(keep, entries.size()).clear();
+		writeIndex(mDir, entries);
+
+		for (Entry entry : evicted) {
+		    new File(mDir, entry.time + SUFFIX).delete();
+		}
+
+	    }
+
+	}
+
+	/**
+	 * Drops the recorded payload.
+	 */
+	public void abort() {
+
+	    IOUtils.close(mOut);
+	    mTemp.delete();
+
+	}
+
+    }
+
+    private static File getDirectory(Context context, String provider) {
+
+	// provider names are used as is where they are valid file names
+	final StringBuilder name = new StringBuilder(provider.length());
+	for (int i = 0; i < provider.length(); i++) {
+	    final char c = provider.charAt(i);
+	    name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-'
+		    ? c : '_');
+	}
+
+	return new File(new File(context.getFilesDir(), DIRECTORY_NAME),
+		name.toString());
+
+    }
+
+    /**
+     * Reads index of payloads, one per line: time, size and stored size
+     * separated by tabs, newest first.
+     */
+    private static ArrayList<Entry> readIndex(File dir) throws IOException {
+
+	final ArrayList<Entry> entries = new ArrayList<Entry>();
+	final File file = new File(dir, INDEX_NAME);
+	if (!file.exists()) {
+	    return entries;
+	}
+
+	final BufferedReader reader = new BufferedReader(new FileReader(file));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		final String[] fields = line.split("\t");
+		if (fields.length != 3) {
+		    continue;
+		}
+		try {
+		    entries.add(new Entry(Long.parseLong(fields[0]),
+			    Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+		} catch (NumberFormatException e) {
+		    // skip damaged line
+		}
+	    }
+	} finally {
+	    IOUtils.close(reader);
+	}
+	return entries;
+
+    }
+
+    private static void writeIndex(File dir, ArrayList<Entry> entries)
+	    throws IOException {
+
+	final File file = new File(dir, INDEX_NAME);
+	final File temp = new File(dir, INDEX_NAME + SUFFIX_TEMP);
+
+	final Writer writer = new FileWriter(temp);
+	try {
+	    for (Entry entry : entries) {
+		writer.write(entry.time + "\t" + entry.size + "\t"
+			+ entry.storedSize + "\n");
+	    }
+	} finally {
+	    IOUtils.close(writer);
+	}
+
+	if (!temp.renameTo(file)) {
+	    temp.delete();
+	    throw new IOException("failed to replace " + file);
+	}
+
+    }
+
+    private static final class Entry {
+
+	final long time;
+
+	final long size;
+
+	final long storedSize;
+
+	Entry(long time, long size, long storedSize) {
+	    this.time = time;
+	    this.size = size;
+	    this.storedSize = storedSize;
+	}
+
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+/**
+ * Backoff state of providers, kept by the caller across loads. SPIs that
+ * load from several providers skip the ones that are backing off and 
+ * report the outcome of each one they tried, so that a failing provider
+ * backs off on its own instead of holding back the others.
+ *
+ * @see RateBatch#setHealth(ProviderHealth)
+ */
+public interface ProviderHealth {
+
+    /**
+     * Returns true if provider should not be tried now, because it failed
+     * recently or repeatedly.
+     *
+     * @param provider
+     * @return
+     */
+    public boolean isBackingOff(String provider);
+
+    /**
+     * Records that provider loaded.
+     *
+     * @param provider
+     */
+    public void onSuccess(String provider);
+
+    /**
+     * Records that provider failed or did not finish in time.
+     *
+     * @param provider
+     */
+    public void onFailure(String provider);
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Latency of providers on previous loads, used to select the provider to
+ * load from. Latency is kept as an exponentially weighted average of 
+ * loads that returned rates. Health of providers is the backoff state
+ * the caller passes with the batch.
+ *
+ * @see SelectingRatesSpiFactory
+ * @see ProviderHealth
+ */
+final class ProviderStats {
+
+    /**
+     * Weight of the latest sample in the average latency.
+     */
+    static final double SMOOTHING = 0.3;
+
+    private static final String PREFERENCES_NAME = "ProviderStats";
+
+    private static final String PREF_LATENCY = "latency.";
+
+    private final SharedPreferences mPreferences;
+
+    ProviderStats(Context context) {
+	mPreferences = context.getSharedPreferences(PREFERENCES_NAME,
+		Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns average latency of provider.
+     *
+     * @param provider
+     * @return latency in millis, -1 if provider has not loaded yet
+     */
+    long getLatency(String provider) {
+
+	return mPreferences.getLong(PREF_LATENCY + provider, -1);
+
+    }
+
+    /**
+     * Records latency of a load that returned rates.
+     *
+     * @param provider
+     * @param latency millis the load took
+     */
+    void onLoaded(String provider, long latency) {
+
+	final long average = getLatency(provider);
+	mPreferences.edit().
+		putLong(PREF_LATENCY + provider, average < 0 ? latency
+		: Math.round(SMOOTHING * latency + (1 - SMOOTHING) * average)).
+		commit();
+
+    }
+
+}
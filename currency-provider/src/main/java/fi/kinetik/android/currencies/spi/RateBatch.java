@@ -0,0 +1,337 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import fi.kinetik.android.currencies.util.CurrencyCode;
+
+/**
+ * Conversion rates loaded by a {@link RatesSpi}. Rates are held in parallel
+ * arrays so that a batch can be reused between loads without allocating
+ * per rate.
+ */
+public final class RateBatch {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private String[] mCurrencies;
+
+    private long[] mUpdated;
+
+    private double[] mRates;
+
+    private String[] mProviders;
+
+    private int mSize;
+
+    private boolean mPartial;
+
+    private boolean mConditional;
+
+    private boolean mNotModified;
+
+    private boolean mReplay;
+
+    private ProviderHealth mHealth;
+
+    private String mValidatorKey;
+
+    private String mETag;
+
+    private String mLastModified;
+
+    private long mBytesReceived;
+
+    private long mBytesDecoded;
+
+    public RateBatch() {
+	this(DEFAULT_CAPACITY);
+    }
+
+    public RateBatch(int capacity) {
+	mCurrencies = new String[capacity];
+	mUpdated = new long[capacity];
+	mRates = new double[capacity];
+	mProviders = new String[capacity];
+    }
+
+    /**
+     * Adds a rate.
+     *
+     * @param currency 3-letter currency code
+     * @param updated timestamp in millis
+     * @param rate rate against the base currency
+     */
+    public void add(String currency, long updated, double rate) {
+	add(currency, updated, rate, null);
+    }
+
+    /**
+     * Adds a rate of a specific provider.
+     *
+     * @param currency 3-letter currency code
+     * @param updated timestamp in millis
+     * @param rate rate against the base currency
+     * @param provider name of the provider of the rate, null for the
+     * provider of the batch
+     */
+    public void add(String currency, long updated, double rate,
+	    String provider) {
+
+	if (mSize == mCurrencies.length) {
+	    grow();
+	}
+
+	mCurrencies[mSize] = CurrencyCode.toUpperCase(currency);
+	set(mSize, updated, rate, provider);
+	mSize++;
+
+    }
+
+    /**
+     * Replaces a rate.
+     *
+     * @param i index of the rate
+     * @param updated timestamp in millis
+     * @param rate rate against the base currency
+     * @param provider name of the provider of the rate, may be null
+     */
+    public void set(int i, long updated, double rate, String provider) {
+
+	mUpdated[i] = updated;
+	mRates[i] = rate;
+	mProviders[i] = provider;
+
+    }
+
+    /**
+     * Returns index of currency in batch.
+     *
+     * @param currency
+     * @return index or -1 if currency is not in batch
+     */
+    public int indexOf(String currency) {
+
+	currency = CurrencyCode.toUpperCase(currency);
+	for (int i = 0; i < mSize; i++) {
+	    if (mCurrencies[i].equals(currency)) {
+		return i;
+	    }
+	}
+	return -1;
+
+    }
+
+    public int size() {
+	return mSize;
+    }
+
+    public boolean isEmpty() {
+	return mSize == 0;
+    }
+
+    public String getCurrency(int i) {
+	return mCurrencies[i];
+    }
+
+    public long getUpdated(int i) {
+	return mUpdated[i];
+    }
+
+    public double getRate(int i) {
+	return mRates[i];
+    }
+
+    /**
+     * Returns provider of a rate.
+     *
+     * @param i
+     * @return name of the provider or null for the provider of the batch
+     */
+    public String getProvider(int i) {
+	return mProviders[i];
+    }
+
+    /**
+     * Marks that the batch does not hold all the rates of its source, so
+     * that stored rates missing from it must not be deleted.
+     *
+     * @param partial
+     */
+    public void setPartial(boolean partial) {
+	mPartial = partial;
+    }
+
+    public boolean isPartial() {
+	return mPartial;
+    }
+
+    /**
+     * Sets whether the rates may be requested conditionally, that is,
+     * whether the caller still has the rates of the previous load.
+     *
+     * @param conditional
+     */
+    public void setConditional(boolean conditional) {
+	mConditional = conditional;
+    }
+
+    public boolean isConditional() {
+	return mConditional;
+    }
+
+    /**
+     * Sets whether rates should be parsed from the last payload kept in 
+     * {@link PayloadCache} instead of being downloaded. Implementations 
+     * that keep no payloads load as usual, ones that have none cached 
+     * leave the batch empty.
+     *
+     * @param replay
+     */
+    public void setReplay(boolean replay) {
+	mReplay = replay;
+    }
+
+    public boolean isReplay() {
+	return mReplay;
+    }
+
+    /**
+     * Sets backoff state of providers for implementations that load from
+     * several of them. Not set, all providers are tried.
+     *
+     * @param health
+     */
+    public void setHealth(ProviderHealth health) {
+	mHealth = health;
+    }
+
+    /**
+     * Returns backoff state of providers or null if there is none.
+     *
+     * @return
+     */
+    public ProviderHealth getHealth() {
+	return mHealth;
+    }
+
+    /**
+     * Marks that source has not changed since previous load and the batch
+     * has no rates.
+     *
+     * @param notModified
+     */
+    public void setNotModified(boolean notModified) {
+	mNotModified = notModified;
+    }
+
+    public boolean isNotModified() {
+	return mNotModified;
+    }
+
+    /**
+     * Sets cache validators of the loaded source, saved by the caller once
+     * the rates are written.
+     *
+     * @param key source identifier
+     * @param eTag
+     * @param lastModified
+     * @see FeedValidators#save
+     */
+    public void setValidators(String key, String eTag, String lastModified) {
+	mValidatorKey = key;
+	mETag = eTag;
+	mLastModified = lastModified;
+    }
+
+    /**
+     * Returns source identifier of validators or null if there are none.
+     *
+     * @return
+     */
+    public String getValidatorKey() {
+	return mValidatorKey;
+    }
+
+    public String getETag() {
+	return mETag;
+    }
+
+    public String getLastModified() {
+	return mLastModified;
+    }
+
+    /**
+     * Sets number of bytes transferred to load the batch.
+     *
+     * @param received bytes received, as encoded for transfer
+     * @param decoded bytes after decoding the transfer encoding
+     */
+    public void setTransferSize(long received, long decoded) {
+	mBytesReceived = received;
+	mBytesDecoded = decoded;
+    }
+
+    public long getBytesReceived() {
+	return mBytesReceived;
+    }
+
+    public long getBytesDecoded() {
+	return mBytesDecoded;
+    }
+
+    /**
+     * Removes all rates and load state, keeping the allocated capacity.
+     */
+    public void clear() {
+
+	for (int i = 0; i < mSize; i++) {
+	    mCurrencies[i] = null;
+	    mProviders[i] = null;
+	}
+	mSize = 0;
+	mPartial = false;
+	mConditional = false;
+	mNotModified = false;
+	mReplay = false;
+	mHealth = null;
+	setValidators(null, null, null);
+	setTransferSize(0, 0);
+
+    }
+
+    private void grow() {
+
+	final int capacity = Math.max(mCurrencies.length * 2, 16);
+
+	final String[] currencies = new String[capacity];
+	System.arraycopy(mCurrencies, 0, currencies, 0, mSize);
+	mCurrencies = currencies;
+
+	final long[] updated = new long[capacity];
+	System.arraycopy(mUpdated, 0, updated, 0, mSize);
+	mUpdated = updated;
+
+	final double[] rates = new double[capacity];
+	System.arraycopy(mRates, 0, rates, 0, mSize);
+	mRates = rates;
+
+	final String[] providers = new String[capacity];
+	System.arraycopy(mProviders, 0, providers, 0, mSize);
+	mProviders = providers;
+
+    }
+
+}
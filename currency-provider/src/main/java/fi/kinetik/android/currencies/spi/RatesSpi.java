@@ -15,8 +15,6 @@
  */
 package fi.kinetik.android.currencies.spi;
 
-import java.util.ArrayList;
-import android.content.ContentProviderOperation;
 import java.io.IOException;
 
 /**
@@ -27,15 +25,14 @@ import java.io.IOException;
 public interface RatesSpi {
     
     /**
-     * Retrieve conversion rate updates and add them as update operations using
-     * factory method from CurrencyRate.
+     * Retrieve conversion rates and add them into batch. The caller compares
+     * the batch with stored rates and writes only the ones that changed.
      * 
-     * @see CurrencyRateContract
-     * @param operations 
+     * @param batch 
      * @throws IOException
-     * @throws ConversionDataSpiException  
+     * @throws RatesSpiException  
      */
-    public void loadData(ArrayList<ContentProviderOperation> operations)
+    public void loadData(RateBatch batch)
 	    throws IOException, RatesSpiException;
     
     
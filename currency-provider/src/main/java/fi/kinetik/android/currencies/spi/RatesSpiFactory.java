@@ -22,11 +22,23 @@ import fi.kinetik.android.currencies.util.IOUtils;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * <p>Abstract factory that loads RatesSpiFactory implementation based on property
- * file under assets or using defaults if one does not exist.</p>
+ * file under assets, or discovers the implementations registered as 
+ * services if the file does not name one.</p>
  * 
  * <p>To configure your own SPI:
  * <ul>
@@ -38,6 +50,17 @@ import java.util.Properties;
  * you may add other implementation specific properties into same file.
  * </p>
  * 
+ * <p>Alternatively list the class in resource
+ * META-INF/services/fi.kinetik.android.currencies.spi.RatesSpiFactory.
+ * When several implementations are registered the rates are loaded by a 
+ * {@link SelectingRatesSpiFactory}, which picks one of them on each sync
+ * by {@link #getPriority() priority}, {@link #getCapabilities() 
+ * capabilities} and their latency and health on previous syncs.</p>
+ * 
+ * <p>Creating the factory reads assets and loads classes, call 
+ * {@link #getInstanceAsync(Context)} early to have it done on a background
+ * thread by the time {@link #getInstance(Context)} is called.</p>
+ * 
  * @author Jukka Raanamo <jukka.raanamo@kinetik.fi>
  */
 public abstract class RatesSpiFactory {
@@ -64,29 +87,163 @@ public abstract class RatesSpiFactory {
 		"currency_spi.properties";
 
 	/**
-	 * Singleton factory implementation.
+	 * Capability of factories that load rates over the network. Factories
+	 * without it serve rates locally and are selected only if none of the
+	 * network providers loads.
 	 */
-	private static RatesSpiFactory sFactory;
+	public static final int CAPABILITY_NETWORK = 1;
+
+	/**
+	 * Capability of factories that honor {@link RateBatch#isConditional()}.
+	 */
+	public static final int CAPABILITY_CONDITIONAL = 2;
+
+	/**
+	 * Capability of factories that honor {@link RateBatch#isReplay()}.
+	 */
+	public static final int CAPABILITY_REPLAY = 4;
+
+	/**
+	 * Orders factories by priority, highest first.
+	 */
+	private static final Comparator<RatesSpiFactory> PRIORITY_ORDER =
+		new Comparator<RatesSpiFactory>() {
+
+			public int compare(RatesSpiFactory a, RatesSpiFactory b) {
+				final int pa = a.getPriority();
+				final int pb = b.getPriority();
+				return pa > pb ? -1 : (pa == pb ? 0 : 1);
+			}
+
+		};
+
+	/**
+	 * Singleton factory implementation, published once initialized.
+	 */
+	private static volatile RatesSpiFactory sFactory;
+
+	/**
+	 * Initialization started and not failed, guarded by class lock.
+	 */
+	private static FutureTask<RatesSpiFactory> sInit;
+
+	/**
+	 * Time in millis initialization took, -1 until initialized.
+	 */
+	private static volatile long sInitLatency = -1;
 
 	/**
 	 * Lazy loads and returns singleton instance of factory implementation.
+	 * Blocks until initialization, started here or by 
+	 * {@link #getInstanceAsync(Context)}, completes. Once initialized the
+	 * instance is returned without locking.
 	 * 
 	 * @param context
 	 * @return
 	 * @throws IOException
 	 * @throws RatesSpiException
 	 */
-	public static synchronized RatesSpiFactory getInstance(
+	public static RatesSpiFactory getInstance(
 		Context context) throws IOException, RatesSpiException {
 
-		if (sFactory == null) {
-			sFactory = createFactory(context);
+		final RatesSpiFactory factory = sFactory;
+		if (factory != null) {
+			return factory;
+		}
+
+		try {
+			return getInstanceAsync(context).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+				"interrupted while creating factory");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RatesSpiException) {
+				throw (RatesSpiException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RatesSpiException("creating factory failed", cause);
+			}
+		}
+
+	}
+
+	/**
+	 * Starts initializing the singleton factory on a background thread, 
+	 * unless it is already initialized or being initialized. Failed 
+	 * initialization is started again on the next call.
+	 * 
+	 * @param context
+	 * @return future of the factory
+	 */
+	public static synchronized Future<RatesSpiFactory> getInstanceAsync(
+		Context context) {
+
+		if (sInit != null) {
+			return sInit;
+		}
+
+		final Context appContext = context.getApplicationContext();
+		final FutureTask<RatesSpiFactory> init = new FutureTask<RatesSpiFactory>(
+			new Callable<RatesSpiFactory>() {
+
+				public RatesSpiFactory call() throws Exception {
+					return initialize(appContext);
+				}
+
+			});
+		sInit = init;
+
+		final Thread thread = new Thread(init, TAG + "-init");
+		thread.setDaemon(true);
+		thread.start();
+
+		return init;
+
+	}
+
+	/**
+	 * Returns time in millis it took to initialize the factory.
+	 * 
+	 * @return latency or -1 if factory is not initialized
+	 */
+	public static long getInitLatency() {
+		return sInitLatency;
+	}
+
+	/**
+	 * Creates and publishes the singleton factory, or forgets the failed
+	 * attempt so that it is tried again.
+	 */
+	private static RatesSpiFactory initialize(Context context)
+		throws IOException, RatesSpiException {
+
+		final long start = System.currentTimeMillis();
+		RatesSpiFactory factory = null;
+		try {
+			factory = createFactory(context);
+		} finally {
+			// errors too, e.g. a LinkageError of an spi class
+			if (factory == null) {
+				onInitFailed();
+			}
 		}
 
-		return sFactory;
+		sInitLatency = System.currentTimeMillis() - start;
+		sFactory = factory;
+		Log.i(TAG, "factory initialized in " + sInitLatency + " ms");
+		return factory;
 
 	}
 
+	private static synchronized void onInitFailed() {
+		sInit = null;
+	}
+
 	/**
 	 * Creates an initializes factory impl.
 	 * 
@@ -109,39 +266,93 @@ public abstract class RatesSpiFactory {
 		} catch (FileNotFoundException e) {
 
 			Log.w(TAG, "no " + PROPERTY_FILENAME
-				+ " defined in assets, using default spi impl: "
-				+ DEFAULT_SPI_FACTORY_CLASS_NAME);
-
-			props.setProperty(PROPERTY_SPI_FACTORY_CLASS_NAME,
-				DEFAULT_SPI_FACTORY_CLASS_NAME);
+				+ " defined in assets, discovering spi impls");
 
 		} finally {
 			IOUtils.close(in);
 		}
 
-		final RatesSpiFactory factory = createFactory(props);
+		final RatesSpiFactory factory = createFactory(context, props);
 		factory.onCreate(context, props);
 		return factory;
 
 	}
 
 	/**
-	 * Instantiates factory implementation by classname.
+	 * Instantiates factory implementation by classname, or discovers the
+	 * registered ones if no classname is set.
 	 * 
+	 * @param context
 	 * @param props
 	 * @return
 	 * @throws RatesSpiException
 	 */
-	private static RatesSpiFactory createFactory(Properties props)
-		throws RatesSpiException {
+	private static RatesSpiFactory createFactory(Context context,
+		Properties props) throws RatesSpiException {
 
 		final String cls = props.getProperty(PROPERTY_SPI_FACTORY_CLASS_NAME);
 
-		if (TextUtils.isEmpty(cls)) {
-			throw new IllegalStateException(
-				PROPERTY_SPI_FACTORY_CLASS_NAME + " property not set");
+		if (!TextUtils.isEmpty(cls)) {
+			return newFactory(cls);
 		}
 
+		final List<RatesSpiFactory> factories =
+			discoverFactories(context.getClassLoader());
+
+		if (factories.isEmpty()) {
+			Log.w(TAG, "no spi impls registered, using default spi impl: "
+				+ DEFAULT_SPI_FACTORY_CLASS_NAME);
+			return newFactory(DEFAULT_SPI_FACTORY_CLASS_NAME);
+		} else if (factories.size() == 1) {
+			return factories.get(0);
+		} else {
+			return new SelectingRatesSpiFactory(factories);
+		}
+
+	}
+
+	/**
+	 * Instantiates factory implementations registered as services, without
+	 * initializing them.
+	 * 
+	 * @param loader
+	 * @return factories, highest priority first
+	 * @throws RatesSpiException
+	 */
+	static List<RatesSpiFactory> discoverFactories(ClassLoader loader)
+		throws RatesSpiException {
+
+		final ArrayList<RatesSpiFactory> factories =
+			new ArrayList<RatesSpiFactory>();
+
+		try {
+			for (RatesSpiFactory factory : ServiceLoader.load(
+				RatesSpiFactory.class, loader)) {
+				// selection of the registered factories is not one of them
+				if (!(factory instanceof SelectingRatesSpiFactory)) {
+					factories.add(factory);
+				}
+			}
+		} catch (ServiceConfigurationError e) {
+			throw new RatesSpiException("discovering factories failed", e);
+		}
+
+		// sort is stable, equal priorities keep their registration order
+		Collections.sort(factories, PRIORITY_ORDER);
+		return factories;
+
+	}
+
+	/**
+	 * Instantiates factory implementation by classname, without 
+	 * initializing it.
+	 * 
+	 * @param cls
+	 * @return
+	 * @throws RatesSpiException
+	 */
+	static RatesSpiFactory newFactory(String cls) throws RatesSpiException {
+
 		try {
 			return (RatesSpiFactory) Class.forName(cls).newInstance();
 		} catch (Exception e) {
@@ -175,5 +386,25 @@ public abstract class RatesSpiFactory {
 	 */
 	public abstract String getBaseCurrency();
 
+	/**
+	 * Returns priority among registered factories, higher is preferred when
+	 * providers are otherwise equal.
+	 * 
+	 * @return
+	 */
+	public int getPriority() {
+		return 0;
+	}
+
+	/**
+	 * Returns capabilities of the factory, a combination of the 
+	 * CAPABILITY_ flags.
+	 * 
+	 * @return
+	 */
+	public int getCapabilities() {
+		return 0;
+	}
+
 }
 
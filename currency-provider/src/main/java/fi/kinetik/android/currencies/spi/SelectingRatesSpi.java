@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.util.Log;
+import fi.kinetik.android.currencies.util.CurrencyCode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Loads rates from the first of several SPIs that succeeds, in the order
+ * of their recorded latency, skipping the ones that are backing off.
+ *
+ * @see SelectingRatesSpiFactory
+ */
+class SelectingRatesSpi implements RatesSpi {
+
+    private static final String TAG = "SelectingRatesSpi";
+
+    private final ProviderStats mStats;
+
+    private final RatesSpi[] mSpis;
+
+    private final String[] mBases;
+
+    private final int[] mCapabilities;
+
+    private final String mBaseCurrency;
+
+    SelectingRatesSpi(ProviderStats stats, RatesSpi[] spis, String[] bases,
+	    int[] capabilities, String baseCurrency) {
+
+	mStats = stats;
+	mSpis = spis;
+	mBases = bases;
+	mCapabilities = capabilities;
+	mBaseCurrency = CurrencyCode.toUpperCase(baseCurrency);
+
+    }
+
+    public void loadData(RateBatch batch) throws IOException,
+	    RatesSpiException {
+
+	final boolean conditional = batch.isConditional();
+	final boolean replay = batch.isReplay();
+	final ProviderHealth health = batch.getHealth();
+	Exception failure = null;
+
+	for (int i : rank(replay, health)) {
+
+	    final String provider = mSpis[i].getProviderName();
+
+	    // rates of a failed provider are not mixed with the next one
+	    batch.clear();
+	    batch.setConditional(conditional && (mCapabilities[i]
+		    & RatesSpiFactory.CAPABILITY_CONDITIONAL) != 0);
+	    batch.setReplay(replay);
+	    batch.setHealth(health);
+
+	    final long start = System.currentTimeMillis();
+	    try {
+		load(i, batch);
+	    } catch (Exception e) {
+		Log.w(TAG, provider + " failed", e);
+		if (!replay && health != null) {
+		    health.onFailure(provider);
+		}
+		failure = e;
+		continue;
+	    }
+
+	    if (replay) {
+		if (batch.isEmpty()) {
+		    Log.d(TAG, provider + " has no payload cached");
+		    continue;
+		}
+		return;
+	    }
+
+	    // not modified responses are not comparable to full loads
+	    if (!batch.isNotModified()) {
+		mStats.onLoaded(provider, System.currentTimeMillis() - start);
+	    }
+	    if (health != null) {
+		health.onSuccess(provider);
+	    }
+	    Log.d(TAG, "rates loaded from " + provider);
+	    return;
+
+	}
+
+	// a replay without cached payloads is left empty, not loaded
+	batch.clear();
+	batch.setConditional(conditional);
+	batch.setReplay(replay);
+	batch.setHealth(health);
+	if (failure != null) {
+	    throw new RatesSpiException("no provider loaded rates", failure);
+	}
+	if (!replay) {
+	    // retried once the first provider stops backing off
+	    throw new RatesSpiException("all providers backing off");
+	}
+
+    }
+
+    /**
+     * Loads rates of SPI into batch, rebasing them if needed. Loaded rates
+     * have the provider set.
+     */
+    private void load(int i, RateBatch batch) throws IOException,
+	    RatesSpiException {
+
+	final String provider = mSpis[i].getProviderName();
+
+	if (mBaseCurrency.equals(CurrencyCode.toUpperCase(mBases[i]))) {
+
+	    mSpis[i].loadData(batch);
+	    if (!batch.isReplay() && !batch.isNotModified()
+		    && batch.isEmpty()) {
+		throw new RatesSpiException(provider + " loaded no rates");
+	    }
+	    for (int j = 0; j < batch.size(); j++) {
+		if (batch.getProvider(j) == null) {
+		    batch.set(j, batch.getUpdated(j), batch.getRate(j),
+			    provider);
+		}
+	    }
+
+	} else {
+
+	    final RateBatch loaded = new RateBatch();
+	    loaded.setConditional(batch.isConditional());
+	    loaded.setReplay(batch.isReplay());
+	    loaded.setHealth(batch.getHealth());
+	    mSpis[i].loadData(loaded);
+
+	    batch.setValidators(loaded.getValidatorKey(), loaded.getETag(),
+		    loaded.getLastModified());
+	    batch.setTransferSize(loaded.getBytesReceived(),
+		    loaded.getBytesDecoded());
+	    if (loaded.isNotModified()) {
+		batch.setNotModified(true);
+		return;
+	    }
+
+	    batch.setPartial(loaded.isPartial());
+	    if (loaded.isReplay() && loaded.isEmpty()) {
+		return;
+	    }
+	    if (!CompositeRatesSpi.merge(batch, new HashMap<String, Integer>(),
+		    loaded, mBases[i], mBaseCurrency, false, provider)) {
+		throw new RatesSpiException(provider + " loaded no rates for "
+			+ mBaseCurrency);
+	    }
+
+	}
+
+    }
+
+    /**
+     * Returns indexes of SPIs in the order they are tried, leaving out the
+     * ones that are backing off.
+     */
+    private List<Integer> rank(boolean replay, ProviderHealth health) {
+
+	final ArrayList<Integer> network = new ArrayList<Integer>();
+	final ArrayList<Integer> local = new ArrayList<Integer>();
+	final long[] latencies = new long[mSpis.length];
+
+	for (int i = 0; i < mSpis.length; i++) {
+
+	    if (replay) {
+		if ((mCapabilities[i] & RatesSpiFactory.CAPABILITY_REPLAY) != 0) {
+		    network.add(i);
+		}
+		continue;
+	    }
+
+	    final String provider = mSpis[i].getProviderName();
+	    if (health != null && health.isBackingOff(provider)) {
+		Log.d(TAG, provider + " backing off, skipped");
+	    } else if ((mCapabilities[i]
+		    & RatesSpiFactory.CAPABILITY_NETWORK) == 0) {
+		local.add(i);
+	    } else {
+		network.add(i);
+	    }
+	    latencies[i] = mStats.getLatency(provider);
+
+	}
+
+	if (!replay) {
+	    // sort is stable, SPIs are in priority order
+	    Collections.sort(network, new Comparator<Integer>() {
+
+		public int compare(Integer a, Integer b) {
+		    final long la = latencies[a];
+		    final long lb = latencies[b];
+		    return la < lb ? -1 : (la == lb ? 0 : 1);
+		}
+
+	    });
+	}
+
+	network.addAll(local);
+	return network;
+
+    }
+
+    public String getProviderName() {
+	return SelectingRatesSpiFactory.PROVIDER_NAME;
+    }
+
+}
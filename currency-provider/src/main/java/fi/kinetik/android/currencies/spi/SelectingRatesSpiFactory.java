@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import android.content.Context;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>Factory that loads rates from one of several SPI implementations, 
+ * selected on each sync. It is used when several factories are registered
+ * as services, or it can be set as <code>rates_spi.factory</code> to 
+ * select among the registered factories explicitly. All factories are 
+ * created with the same properties.</p>
+ * 
+ * <p>Network providers are tried fastest first by their average latency
+ * on previous loads. Providers that have not loaded yet are tried before
+ * the measured ones so that each gets measured, equally fast ones by 
+ * priority. Providers that do not need the network are tried last. A 
+ * provider that fails is followed by the next one within the same sync.
+ * Providers that are backing off after failures are skipped. Only the
+ * providers that honor conditional requests are requested conditionally.
+ * Replays go to the providers that can replay, by priority, and load 
+ * nothing if none of them has a payload cached.</p>
+ * 
+ * <p>Rates are rebased to the base currency of the highest priority
+ * factory.</p>
+ * 
+ * @see RatesSpiFactory#getPriority()
+ * @see RatesSpiFactory#getCapabilities()
+ */
+public class SelectingRatesSpiFactory extends RatesSpiFactory {
+
+    public static final String PROVIDER_NAME = "Selecting";
+
+    private RatesSpiFactory[] mFactories;
+
+    private ProviderStats mStats;
+
+    /**
+     * Creates factory that selects among the factories registered as 
+     * services.
+     */
+    public SelectingRatesSpiFactory() {
+	// factories are discovered on create
+    }
+
+    /**
+     * Creates factory that selects among given factories.
+     *
+     * @param factories uninitialized factories, highest priority first
+     */
+    SelectingRatesSpiFactory(List<RatesSpiFactory> factories) {
+	mFactories = factories.toArray(new RatesSpiFactory[factories.size()]);
+    }
+
+    @Override
+    protected void onCreate(Context context, Properties props) throws
+	    RatesSpiException {
+
+	if (mFactories == null) {
+	    final List<RatesSpiFactory> factories =
+		    discoverFactories(context.getClassLoader());
+	    mFactories = factories.toArray(
+		    new RatesSpiFactory[factories.size()]);
+	}
+	if (mFactories.length == 0) {
+	    throw new RatesSpiException("no factories registered");
+	}
+
+	for (RatesSpiFactory factory : mFactories) {
+	    factory.onCreate(context, props);
+	}
+	mStats = new ProviderStats(context);
+
+    }
+
+    @Override
+    public RatesSpi newSpi() {
+
+	final RatesSpi[] spis = new RatesSpi[mFactories.length];
+	final String[] bases = new String[mFactories.length];
+	final int[] capabilities = new int[mFactories.length];
+	for (int i = 0; i < mFactories.length; i++) {
+	    spis[i] = mFactories[i].newSpi();
+	    bases[i] = mFactories[i].getBaseCurrency();
+	    capabilities[i] = mFactories[i].getCapabilities();
+	}
+
+	return new SelectingRatesSpi(mStats, spis, bases, capabilities,
+		getBaseCurrency());
+
+    }
+
+    @Override
+    public String getBaseCurrency() {
+	return mFactories[0].getBaseCurrency();
+    }
+
+    @Override
+    public int getCapabilities() {
+
+	int capabilities = 0;
+	for (RatesSpiFactory factory : mFactories) {
+	    capabilities |= factory.getCapabilities();
+	}
+	return capabilities;
+
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi.fixed;
+
+import android.content.Context;
+import fi.kinetik.android.currencies.spi.RateBatch;
+import fi.kinetik.android.currencies.spi.RatesSpi;
+import fi.kinetik.android.currencies.spi.RatesSpiException;
+import fi.kinetik.android.currencies.spi.RatesSpiFactory;
+import java.util.Properties;
+
+/**
+ * SPI implementation that serves fixed rates from properties, without
+ * network access. Useful as a stub provider and as a fallback of last resort
+ * in a composite factory:
+ * 
+ * <pre>
+ * fixed.base=EUR
+ * fixed.rates=USD:1.3,GBP:0.85
+ * </pre>
+ */
+public class FixedRatesSpiFactory extends RatesSpiFactory {
+
+    public static final String PROVIDER_NAME = "Fixed";
+
+    private static final String PROPERTY_PREFIX = "fixed.";
+
+    /**
+     * Base currency of the rates.
+     */
+    public static final String PROPERTY_BASE = PROPERTY_PREFIX + "base";
+
+    /**
+     * Comma separated list of currency:rate pairs.
+     */
+    public static final String PROPERTY_RATES = PROPERTY_PREFIX + "rates";
+
+    /**
+     * Provider name of the rates, defaults to {@link #PROVIDER_NAME}.
+     */
+    public static final String PROPERTY_PROVIDER = PROPERTY_PREFIX
+	    + "provider";
+
+    public static final String DEFAULT_BASE_CURRENCY = "USD";
+
+    private String mBaseCurrency;
+
+    private String mProviderName;
+
+    private String[] mCurrencies;
+
+    private double[] mRates;
+
+    /**
+     * Rates are considered updated when loaded from properties.
+     */
+    private long mUpdated;
+
+    @Override
+    protected void onCreate(Context context, Properties props) throws
+	    RatesSpiException {
+
+	mBaseCurrency = props.getProperty(PROPERTY_BASE, DEFAULT_BASE_CURRENCY);
+	mProviderName = props.getProperty(PROPERTY_PROVIDER, PROVIDER_NAME);
+	mUpdated = System.currentTimeMillis();
+
+	final String rates = props.getProperty(PROPERTY_RATES, "").trim();
+	final String[] pairs = rates.length() > 0
+		? rates.split(",") : new String[0];
+
+	mCurrencies = new String[pairs.length];
+	mRates = new double[pairs.length];
+
+	for (int i = 0; i < pairs.length; i++) {
+	    final String pair = pairs[i].trim();
+	    final int separator = pair.indexOf(':');
+	    try {
+		mCurrencies[i] = pair.substring(0, separator).trim();
+		mRates[i] = Double.parseDouble(
+			pair.substring(separator + 1).trim());
+	    } catch (RuntimeException e) {
+		throw new RatesSpiException("bad " + PROPERTY_RATES + ": "
+			+ pair, e);
+	    }
+	}
+
+    }
+
+    @Override
+    public RatesSpi newSpi() {
+
+	return new RatesSpi() {
+
+	    public void loadData(RateBatch batch) {
+		for (int i = 0; i < mCurrencies.length; i++) {
+		    batch.add(mCurrencies[i], mUpdated, mRates[i]);
+		}
+	    }
+
+	    public String getProviderName() {
+		return mProviderName;
+	    }
+
+	};
+
+    }
+
+    @Override
+    public String getBaseCurrency() {
+	return mBaseCurrency;
+    }
+
+}
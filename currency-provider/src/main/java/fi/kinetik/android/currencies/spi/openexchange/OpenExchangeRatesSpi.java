@@ -15,18 +15,22 @@
  */
 package fi.kinetik.android.currencies.spi.openexchange;
 
-import android.content.ContentProviderOperation;
+import android.content.SharedPreferences;
+import android.util.JsonReader;
+import android.util.Log;
+import fi.kinetik.android.currencies.spi.FeedValidators;
+import fi.kinetik.android.currencies.spi.PayloadCache;
+import fi.kinetik.android.currencies.spi.RateBatch;
 import fi.kinetik.android.currencies.spi.RatesSpi;
 import fi.kinetik.android.currencies.spi.RatesSpiException;
-import fi.kinetik.android.currencies.provider.CurrencyContract.ConversionRate;
+import fi.kinetik.android.currencies.util.CountingInputStream;
 import fi.kinetik.android.currencies.util.IOUtils;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
-import java.util.Iterator;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * 
@@ -49,56 +53,194 @@ import org.json.JSONObject;
 public class OpenExchangeRatesSpi implements RatesSpi {
 
     private static final String TAG = "RatesSpi";
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
     
 
     /* package */ OpenExchangeRatesSpi() {
     }
 
-    public void loadData(ArrayList<ContentProviderOperation> operations)
+    public void loadData(RateBatch batch)
 	    throws IOException, RatesSpiException {
 
-	final URLConnection connection = OpenExchangeRatesSpiFactory.sFeedURL.
-		openConnection();
+	if (batch.isReplay()) {
+	    replay(batch);
+	    return;
+	}
+
+	final URL url = OpenExchangeRatesSpiFactory.sFeedURL;
+	final String key = url.toString();
+	final URLConnection connection = url.openConnection();
+	// blocking reads do not respond to interrupts, a stalled feed would
+	// hold the sync
+	connection.setConnectTimeout(OpenExchangeRatesSpiFactory.sTimeout);
+	connection.setReadTimeout(OpenExchangeRatesSpiFactory.sTimeout);
+	connection.setRequestProperty(HEADER_ACCEPT_ENCODING,
+		IOUtils.ACCEPT_ENCODING);
+
+	if (!connect(batch, connection, FeedValidators.getPreferences(
+		OpenExchangeRatesSpiFactory.sContext), key)) {
+	    return;
+	}
 
 	InputStream in = null;
+	PayloadCache.Recorder recorder = null;
 
 	try {
 
-	    in = connection.getInputStream();
+	    final CountingInputStream received =
+		    new CountingInputStream(connection.getInputStream());
+	    in = received;
+	    final CountingInputStream decoded = new CountingInputStream(
+		    IOUtils.decode(received, connection.getContentEncoding()));
+	    in = decoded;
 
-	    // not efficient to read the entire feed into memory but since its
-	    // not that big...
+	    // payload is copied into cache as it is parsed, loading does not
+	    // depend on the copy
+	    InputStream parsed = in;
+	    try {
+		recorder = PayloadCache.record(OpenExchangeRatesSpiFactory.sContext,
+			OpenExchangeRatesSpiFactory.PROVIDER_NAME);
+		parsed = recorder.wrap(in);
+	    } catch (IOException e) {
+		Log.w(TAG, "payload not cached", e);
+	    }
 
-	    JSONObject json = new JSONObject(IOUtils.toString(in,
-		    OpenExchangeRatesSpiFactory.CHARSET));
-	    
-	    parseRates(operations, json);
+	    // rates are emitted as they are read, the feed is never held in
+	    // memory as a whole
+	    parseRates(batch, new JsonReader(new InputStreamReader(parsed,
+		    OpenExchangeRatesSpiFactory.CHARSET)));
 
-	} catch (JSONException e) {
+	    if (parsed != in) {
+		try {
+		    recorder.commit(System.currentTimeMillis());
+		} catch (IOException e) {
+		    Log.w(TAG, "payload not cached", e);
+		}
+		recorder = null;
+	    }
+
+	    batch.setTransferSize(received.getCount(), decoded.getCount());
+
+	} catch (IllegalStateException e) {
+	    // unexpected token
 	    throw new RatesSpiException("parsing json failed", e);
+	} catch (NumberFormatException e) {
+	    throw new RatesSpiException("parsing json failed", e);
+	} finally {
+	    if (recorder != null) {
+		recorder.abort();
+	    }
+	    IOUtils.close(in);
+	}
+    }
+
+    /**
+     * Requests the feed, conditionally if the batch allows it, and sets the
+     * validators of a full response into batch. The caller saves them once
+     * the rates are written.
+     *
+     * @param batch
+     * @param connection unconnected connection to the feed
+     * @param validators preferences validators of feeds are stored in
+     * @param key feed identifier
+     * @return false if the feed was not modified and is not to be read
+     * @throws IOException
+     */
+    static boolean connect(RateBatch batch, URLConnection connection,
+	    SharedPreferences validators, String key) throws IOException {
+
+	if (batch.isConditional()) {
+	    FeedValidators.addConditions(validators, connection, key);
+	}
+
+	if (connection instanceof HttpURLConnection
+		&& ((HttpURLConnection) connection).getResponseCode()
+		== HttpURLConnection.HTTP_NOT_MODIFIED) {
+	    batch.setNotModified(true);
+	    return false;
+	}
+
+	batch.setValidators(key,
+		connection.getHeaderField(FeedValidators.HEADER_ETAG),
+		connection.getHeaderField(FeedValidators.HEADER_LAST_MODIFIED));
+	return true;
+
+    }
+
+    /**
+     * Parses rates from the last payload in cache, leaves batch empty if
+     * there is none.
+     */
+    private void replay(RateBatch batch)
+	    throws IOException, RatesSpiException {
+
+	final InputStream in = PayloadCache.openLatest(
+		OpenExchangeRatesSpiFactory.sContext,
+		OpenExchangeRatesSpiFactory.PROVIDER_NAME);
+	if (in == null) {
+	    return;
+	}
+
+	try {
+	    parseRates(batch, new JsonReader(new InputStreamReader(in,
+		    OpenExchangeRatesSpiFactory.CHARSET)));
+	} catch (IllegalStateException e) {
+	    throw new RatesSpiException("parsing cached json failed", e);
+	} catch (NumberFormatException e) {
+	    throw new RatesSpiException("parsing cached json failed", e);
 	} finally {
 	    IOUtils.close(in);
 	}
+
     }
 
-    private void parseRates(ArrayList<ContentProviderOperation> operations,
-	    JSONObject jsonObj) throws JSONException {
+    private void parseRates(RateBatch batch, JsonReader reader)
+	    throws IOException, RatesSpiException {
+
+	long updated = -1;
+
+	// rates that precede the timestamp in the feed
+	RateBatch pending = null;
 
-	final long updated = jsonObj.getLong(Keys.TIMESTAMP);
-	final String base = jsonObj.getString(Keys.BASE);
-	final JSONObject rates = jsonObj.getJSONObject(Keys.RATES);
-	final Iterator iter = rates.keys();
+	reader.beginObject();
+	while (reader.hasNext()) {
 
-	while (iter.hasNext()) {
+	    final String name = reader.nextName();
 
-	    final String currency = (String) iter.next();
-	    final double rate = rates.getDouble(currency);
+	    if (Keys.TIMESTAMP.equals(name)) {
+		// feed timestamp is in seconds
+		updated = reader.nextLong() * 1000;
+	    } else if (Keys.RATES.equals(name)) {
+		reader.beginObject();
+		while (reader.hasNext()) {
+		    final String currency = reader.nextName();
+		    final double rate = reader.nextDouble();
+		    if (updated != -1) {
+			batch.add(currency, updated, rate);
+			continue;
+		    }
+		    if (pending == null) {
+			pending = new RateBatch();
+		    }
+		    pending.add(currency, 0, rate);
+		}
+		reader.endObject();
+	    } else {
+		reader.skipValue();
+	    }
+
+	}
+	reader.endObject();
+
+	if (updated == -1) {
+	    throw new RatesSpiException("missing " + Keys.TIMESTAMP);
+	}
 
-	    operations.add(ConversionRate.newUpdateOperation(
-		    currency,
-		    OpenExchangeRatesSpiFactory.PROVIDER_NAME,
-		    updated,
-		    rate));
+	if (pending != null) {
+	    for (int i = 0; i < pending.size(); i++) {
+		batch.add(pending.getCurrency(i), updated, pending.getRate(i));
+	    }
 	}
 
     }
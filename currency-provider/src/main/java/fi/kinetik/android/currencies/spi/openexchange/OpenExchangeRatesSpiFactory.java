@@ -36,6 +36,10 @@ public class OpenExchangeRatesSpiFactory extends RatesSpiFactory {
 
     /* package */ static URL sFeedURL;
 
+    /* package */ static Context sContext;
+
+    /* package */ static int sTimeout;
+
     public static final String PROVIDER_NAME = "OpenExchangeRates";
 
     /*
@@ -54,6 +58,17 @@ public class OpenExchangeRatesSpiFactory extends RatesSpiFactory {
     public static final String DEFAULT_FEED_URL =
 	    "http://openexchangerates.org/latest.json";
 
+    /**
+     * Timeout in milliseconds of connecting to the feed and of each read
+     * from it.
+     */
+    public static final String PROPERTY_TIMEOUT = PROPERTY_PREFIX + "timeout";
+
+    /**
+     * Default timeout of connecting and reading in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 15 * 1000;
+
     /**
      * Base currency for all conversion rates provided by this service.  .
      */
@@ -73,6 +88,8 @@ public class OpenExchangeRatesSpiFactory extends RatesSpiFactory {
     protected void onCreate(Context context, Properties props) throws
 	    RatesSpiException {
 
+	sContext = context.getApplicationContext();
+
 	String value = null;
 
 	try {
@@ -82,6 +99,14 @@ public class OpenExchangeRatesSpiFactory extends RatesSpiFactory {
 	    throw new RatesSpiException("bad feed url: " + value, e);
 	}
 
+	try {
+	    value = props.getProperty(PROPERTY_TIMEOUT,
+		    String.valueOf(DEFAULT_TIMEOUT));
+	    sTimeout = Integer.parseInt(value);
+	} catch (NumberFormatException e) {
+	    throw new RatesSpiException("bad timeout: " + value, e);
+	}
+
     }
 
     @Override
@@ -94,5 +119,10 @@ public class OpenExchangeRatesSpiFactory extends RatesSpiFactory {
 	return BASE_CURRENCY;
     }
 
+    @Override
+    public int getCapabilities() {
+	return CAPABILITY_NETWORK | CAPABILITY_CONDITIONAL | CAPABILITY_REPLAY;
+    }
+
 }
 
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that counts the bytes read through it.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private long mCount;
+
+    public CountingInputStream(InputStream in) {
+	super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+
+	final int b = super.read();
+	if (b != -1) {
+	    mCount++;
+	}
+	return b;
+
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+
+	final int n = super.read(buffer, offset, length);
+	if (n > 0) {
+	    mCount += n;
+	}
+	return n;
+
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+
+	final long skipped = super.skip(n);
+	mCount += skipped;
+	return skipped;
+
+    }
+
+    @Override
+    public boolean markSupported() {
+	return false;
+    }
+
+    /**
+     * Returns number of bytes read or skipped so far.
+     *
+     * @return
+     */
+    public long getCount() {
+	return mCount;
+    }
+
+}
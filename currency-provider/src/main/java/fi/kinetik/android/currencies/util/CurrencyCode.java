@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.util;
+
+/**
+ * Packs ISO 4217 3-letter currency codes into an int, 5 bits per letter.
+ * Packed codes are in range [0, {@link #MAX_CODES}) and can be used as
+ * array indexes. Packing is case insensitive and does not allocate.
+ */
+public final class CurrencyCode {
+
+    /**
+     * Returned for values that are not 3-letter codes.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Upper bound (exclusive) of packed codes.
+     */
+    public static final int MAX_CODES = 1 << 15;
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private CurrencyCode() {
+	// N/A
+    }
+
+    /**
+     * Packs 3-letter currency code into an int.
+     *
+     * @param code
+     * @return packed code or {@link #INVALID}
+     */
+    public static int pack(CharSequence code) {
+
+	if (code == null || code.length() != 3) {
+	    return INVALID;
+	}
+
+	int packed = 0;
+	for (int i = 0; i < 3; i++) {
+	    final int letter = letterIndex(code.charAt(i));
+	    if (letter < 0) {
+		return INVALID;
+	    }
+	    packed = (packed << BITS) | letter;
+	}
+	return packed;
+
+    }
+
+    /**
+     * Unpacks code back into upper case 3-letter currency code.
+     *
+     * @param packed
+     * @return
+     */
+    public static String toString(int packed) {
+
+	if (!isValid(packed)) {
+	    throw new IllegalArgumentException("invalid code: " + packed);
+	}
+
+	return new String(new char[]{
+		    (char) ('A' + ((packed >> (2 * BITS)) & MASK)),
+		    (char) ('A' + ((packed >> BITS) & MASK)),
+		    (char) ('A' + (packed & MASK))});
+
+    }
+
+    /**
+     * Returns true if value is a packed 3-letter code.
+     *
+     * @param packed
+     * @return
+     */
+    public static boolean isValid(int packed) {
+
+	return packed >= 0 && packed < MAX_CODES
+		&& (packed >> (2 * BITS)) < 26
+		&& ((packed >> BITS) & MASK) < 26
+		&& (packed & MASK) < 26;
+
+    }
+
+    /**
+     * Returns code in upper case. Code is returned as is, without
+     * allocating, if it already is in upper case.
+     *
+     * @param code
+     * @return
+     */
+    public static String toUpperCase(String code) {
+
+	for (int i = 0; i < code.length(); i++) {
+	    final char c = code.charAt(i);
+	    if (c >= 'a' && c <= 'z') {
+		return code.toUpperCase();
+	    }
+	}
+	return code;
+
+    }
+
+    private static int letterIndex(char c) {
+
+	if (c >= 'A' && c <= 'Z') {
+	    return c - 'A';
+	} else if (c >= 'a' && c <= 'z') {
+	    return c - 'a';
+	} else {
+	    return -1;
+	}
+
+    }
+
+}
@@ -19,14 +19,89 @@ import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  *
  * @author jsr
  */
 public class IOUtils {
+
+    /**
+     * Value of Accept-Encoding request header for content encodings that
+     * {@link #decode(InputStream, String)} can decode.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * Wraps stream into one that decodes given Content-Encoding as it is
+     * read.
+     * 
+     * @param in
+     * @param contentEncoding value of Content-Encoding header, may be null
+     * @return
+     * @throws IOException 
+     */
+    public static InputStream decode(InputStream in, String contentEncoding)
+	    throws IOException {
+
+	if (contentEncoding == null
+		|| "identity".equalsIgnoreCase(contentEncoding)) {
+	    return in;
+	} else if ("gzip".equalsIgnoreCase(contentEncoding)
+		|| "x-gzip".equalsIgnoreCase(contentEncoding)) {
+	    return new GZIPInputStream(in);
+	} else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+	    return inflate(in);
+	} else {
+	    throw new IOException("unsupported content encoding: "
+		    + contentEncoding);
+	}
+
+    }
     
-    
+    /**
+     * Wraps stream of deflate content into one that inflates it. Servers 
+     * send deflate content both zlib wrapped, as specified, and raw, which
+     * is told apart by the zlib header.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+
+	final PushbackInputStream pushback = new PushbackInputStream(in, 2);
+	final byte[] header = new byte[2];
+	int n = 0;
+	while (n < header.length) {
+	    final int read = pushback.read(header, n, header.length - n);
+	    if (read == -1) {
+		break;
+	    }
+	    n += read;
+	}
+	pushback.unread(header, 0, n);
+
+	// zlib header names the deflate method and is a multiple of 31
+	final boolean wrapped = n == 2 && (header[0] & 0x0F) == 8
+		&& (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+	final Inflater inflater = new Inflater(!wrapped);
+	return new InflaterInputStream(pushback, inflater) {
+
+	    @Override
+	    public void close() throws IOException {
+		// inflaters passed in are not ended by the stream
+		try {
+		    super.close();
+		} finally {
+		    inflater.end();
+		}
+	    }
+
+	};
+
+    }
+
     public static void close(Closeable in) {
 
 	if (in != null) {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream that copies the bytes read through it into an output stream. The
+ * output stream is not closed with this one. Failing to write the copy does
+ * not fail reading, copying stops and the error is kept instead.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream mOut;
+
+    private IOException mOutError;
+
+    public TeeInputStream(InputStream in, OutputStream out) {
+	super(in);
+	mOut = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+	final int b = super.read();
+	if (b != -1 && mOutError == null) {
+	    try {
+		mOut.write(b);
+	    } catch (IOException e) {
+		mOutError = e;
+	    }
+	}
+	return b;
+
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+
+	final int n = super.read(buffer, offset, length);
+	if (n > 0 && mOutError == null) {
+	    try {
+		mOut.write(buffer, offset, n);
+	    } catch (IOException e) {
+		mOutError = e;
+	    }
+	}
+	return n;
+
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+
+	// skipped bytes are read so that the copy is complete
+	final byte[] buffer = new byte[(int) Math.min(n, 512)];
+	long skipped = 0;
+	while (skipped < n) {
+	    final int read = read(buffer, 0,
+		    (int) Math.min(n - skipped, buffer.length));
+	    if (read <= 0) {
+		break;
+	    }
+	    skipped += read;
+	}
+	return skipped;
+
+    }
+
+    @Override
+    public boolean markSupported() {
+	return false;
+    }
+
+    /**
+     * Returns error that stopped copying.
+     *
+     * @return error or null if all bytes read so far were copied
+     */
+    public IOException getOutError() {
+	return mOutError;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Fixed-point conversion of {@link MinorUnitConverter}: sign, rounding of
+ * ties, currencies with 0 and 3 decimals and the range of long amounts.
+ */
+public class MinorUnitConverterTest {
+
+    private static final int EUR = 0;
+
+    private static final int USD = 1;
+
+    private static final int JPY = 2;
+
+    private static final int BHD = 3;
+
+    private static final int UNKNOWN = 4;
+
+    private static final int UNAVAILABLE = 5;
+
+    private static MinorUnitConverter newConverter() {
+	return new MinorUnitConverter(
+		new String[]{"EUR", "USD", "JPY", "BHD", "ZZZ", "GBP"},
+		new double[]{1, 1.5, 125, 0.8, 2, 0});
+    }
+
+    @Test
+    public void testDigits() {
+
+	final MinorUnitConverter converter = newConverter();
+	assertEquals(2, converter.getDigits(EUR));
+	assertEquals(0, converter.getDigits(JPY));
+	assertEquals(3, converter.getDigits(BHD));
+	assertEquals(2, converter.getDigits(UNKNOWN));
+	assertTrue(converter.isAvailable(EUR));
+	assertFalse(converter.isAvailable(UNAVAILABLE));
+
+    }
+
+    @Test
+    public void testConvert() {
+
+	final MinorUnitConverter converter = newConverter();
+	assertEquals(150, converter.convert(EUR, USD, 100));
+	assertEquals(100, converter.convert(USD, EUR, 150));
+	assertEquals(0, converter.convert(EUR, USD, 0));
+	// 1.00 EUR is 125 JPY, 1 BHD is 1.25 EUR
+	assertEquals(125, converter.convert(EUR, JPY, 100));
+	assertEquals(100, converter.convert(JPY, EUR, 125));
+	assertEquals(800, converter.convert(EUR, BHD, 100));
+	assertEquals(125, converter.convert(BHD, EUR, 1000));
+
+    }
+
+    @Test
+    public void testNegative() {
+
+	final MinorUnitConverter converter = newConverter();
+	assertEquals(-150, converter.convert(EUR, USD, -100));
+	assertEquals(-125, converter.convert(EUR, JPY, -100));
+	assertEquals(-125, converter.convert(BHD, EUR, -1000));
+
+    }
+
+    @Test
+    public void testTiesRoundAwayFromZero() {
+
+	final MinorUnitConverter converter = newConverter();
+	// 0.01 EUR is 0.015 USD
+	assertEquals(2, converter.convert(EUR, USD, 1));
+	assertEquals(-2, converter.convert(EUR, USD, -1));
+	// 0.02 EUR is 2.5 JPY
+	assertEquals(3, converter.convert(EUR, JPY, 2));
+	assertEquals(-3, converter.convert(EUR, JPY, -2));
+	assertEquals(1, converter.convert(EUR, JPY, 1));
+	// 0.004 BHD is 0.005 EUR, rounded by the divisor of the digits
+	assertEquals(1, converter.convert(BHD, EUR, 4));
+	assertEquals(-1, converter.convert(BHD, EUR, -4));
+	assertEquals(0, converter.convert(BHD, EUR, 3));
+
+    }
+
+    @Test
+    public void testMulDivRounding() {
+
+	assertEquals(1, MinorUnitConverter.mulDiv(1, 1, 2, 1));
+	assertEquals(0, MinorUnitConverter.mulDiv(1, 1, 3, 1));
+	assertEquals(1, MinorUnitConverter.mulDiv(2, 1, 3, 1));
+	assertEquals(1, MinorUnitConverter.mulDiv(5, 1, 1, 10));
+	assertEquals(0, MinorUnitConverter.mulDiv(4, 1, 1, 10));
+	// ties split between the remainders of both divisors
+	assertEquals(1, MinorUnitConverter.mulDiv(3, 1, 2, 3));
+	assertEquals(0, MinorUnitConverter.mulDiv(3, 1, 2, 4));
+
+    }
+
+    @Test
+    public void testLongRange() {
+
+	final MinorUnitConverter converter = newConverter();
+	assertEquals(Long.MAX_VALUE,
+		converter.convert(EUR, EUR, Long.MAX_VALUE));
+	assertEquals(-Long.MAX_VALUE,
+		converter.convert(EUR, EUR, -Long.MAX_VALUE));
+	// the product of amount and rate exceeds 64 bits
+	assertEquals(6148914691236517205L,
+		converter.convert(USD, EUR, Long.MAX_VALUE));
+	assertEquals(Long.MAX_VALUE,
+		MinorUnitConverter.mulDiv(Long.MAX_VALUE,
+		MinorUnitConverter.RATE_SCALE, MinorUnitConverter.RATE_SCALE,
+		1));
+
+    }
+
+    @Test
+    public void testLongRangeOfDigits() {
+
+	// amount times 10 exceeds 64 bits, the result does not
+	assertEquals(6148914691236517200L,
+		newConverter().convert(USD, BHD, Long.MAX_VALUE / 8));
+	assertEquals(Long.MAX_VALUE,
+		MinorUnitConverter.mulDiv(Long.MAX_VALUE,
+		MinorUnitConverter.RATE_SCALE, 10000,
+		MinorUnitConverter.RATE_SCALE * 10000, 1));
+
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testOverflow() {
+	newConverter().convert(EUR, USD, Long.MAX_VALUE);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testOverflowOfDigits() {
+	newConverter().convert(EUR, BHD, Long.MAX_VALUE / 5);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testMinValue() {
+	newConverter().convert(EUR, EUR, Long.MIN_VALUE);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Reuse of objects through {@link ObjectPool}, as values of row cursors are reused.
+ */
+public class ObjectPoolTest {
+
+    private static final class CountingPool extends ObjectPool<Object> {
+
+	int created;
+
+	CountingPool(int capacity) {
+	    super(capacity);
+	}
+
+	@Override
+	protected Object create() {
+	    created++;
+	    return new Object();
+	}
+
+    }
+
+    @Test
+    public void releasedObjectIsReused() {
+
+	final CountingPool pool = new CountingPool(2);
+	final Object first = pool.obtain();
+	pool.release(first);
+
+	assertSame(first, pool.obtain());
+	assertEquals(1, pool.created);
+	assertEquals(0, pool.size());
+
+    }
+
+    @Test
+    public void objectsInUseAreNotShared() {
+
+	final CountingPool pool = new CountingPool(2);
+	final Object first = pool.obtain();
+	final Object second = pool.obtain();
+
+	assertNotSame(first, second);
+	assertEquals(2, pool.created);
+
+    }
+
+    @Test
+    public void doubleReleaseKeepsObjectOnce() {
+
+	final CountingPool pool = new CountingPool(2);
+	final Object first = pool.obtain();
+	pool.release(first);
+	pool.release(first);
+	assertEquals(1, pool.size());
+
+	// the second caller must not get the object the first one holds
+	final Object a = pool.obtain();
+	final Object b = pool.obtain();
+	assertSame(first, a);
+	assertNotSame(a, b);
+
+    }
+
+    @Test
+    public void releaseBeyondCapacityIsDropped() {
+
+	final CountingPool pool = new CountingPool(1);
+	final Object first = pool.obtain();
+	final Object second = pool.obtain();
+	pool.release(first);
+	pool.release(second);
+
+	assertEquals(1, pool.size());
+	assertSame(first, pool.obtain());
+	pool.obtain();
+	assertEquals(3, pool.created);
+
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips of samples through {@link RateSeriesEncoder} and
+ * {@link RateSeriesDecoder}.
+ */
+public class RateSeriesCodecTest {
+
+    private static final long START = 1318000000000L;
+
+    @Test
+    public void firstSampleIsStoredAsIs() {
+
+	assertRoundTrip(new long[]{START}, new double[]{1.2345});
+	assertRoundTrip(new long[]{Long.MIN_VALUE}, new double[]{0});
+	assertRoundTrip(new long[]{Long.MAX_VALUE}, new double[]{-1e300});
+
+    }
+
+    @Test
+    public void zeroDeltaOfDelta() {
+
+	assertRoundTrip(new long[]{START, START + 1000, START + 2000,
+		    START + 3000},
+		new double[]{1, 1, 1, 1});
+
+    }
+
+    @Test
+    public void twelveBitDeltaOfDelta() {
+
+	// delta-of-deltas 2047 and -2048, the edges of 12 bits
+	assertRoundTrip(new long[]{START, START + 2047, START + 2047},
+		new double[]{1, 2, 3});
+	assertRoundTrip(new long[]{START, START + 3000, START + 3952},
+		new double[]{1, 2, 3});
+
+    }
+
+    @Test
+    public void twentyBitDeltaOfDelta() {
+
+	// 2048 and -2049 just past 12 bits
+	assertRoundTrip(new long[]{START, START + 2048, START + 2047},
+		new double[]{1, 2, 3});
+	// 524287 and -524288 at the edges of 20 bits
+	assertRoundTrip(new long[]{START, START + 524287, START + 524287 - 1},
+		new double[]{1, 2, 3});
+
+    }
+
+    @Test
+    public void thirtyTwoBitDeltaOfDelta() {
+
+	// one day and Integer.MIN_VALUE
+	final long day = 24 * 60 * 60 * 1000;
+	assertRoundTrip(new long[]{START, START + day,
+		    START + day + day + Integer.MIN_VALUE},
+		new double[]{1, 2, 3});
+
+    }
+
+    @Test
+    public void sixtyFourBitDeltaOfDelta() {
+
+	assertRoundTrip(new long[]{0, 1L << 40, 1L << 40, Long.MAX_VALUE},
+		new double[]{1, 2, 3, 4});
+	assertRoundTrip(new long[]{Long.MAX_VALUE, 0, Long.MIN_VALUE + 1},
+		new double[]{1, 2, 3});
+
+    }
+
+    @Test
+    public void xorWithoutLeadingOrTrailingZeros() {
+
+	// xor of all 64 bits, length 64 is stored as 0
+	final double first = Double.longBitsToDouble(0x0000000000000000L);
+	final double second = Double.longBitsToDouble(0x8000000000000001L);
+	final double third = Double.longBitsToDouble(0xFFFFFFFFFFFFFFFFL);
+
+	assertRoundTrip(new long[]{START, START + 1, START + 2},
+		new double[]{first, second, third});
+
+	// sign flip alone, xor has no leading zeros
+	assertRoundTrip(new long[]{START, START + 1, START + 2},
+		new double[]{1.5, -1.5, 1.5});
+
+    }
+
+    @Test
+    public void previousWindowIsReused() {
+
+	// second xor falls within the leading and trailing zeros of the first
+	final long base = 0x3FF0000000000000L;
+	final double[] values = new double[]{
+	    Double.longBitsToDouble(base),
+	    Double.longBitsToDouble(base ^ 0x000FF00000000000L),
+	    Double.longBitsToDouble(base ^ 0x000FF00000000000L
+	    ^ 0x0003000000000000L),
+	    Double.longBitsToDouble(base ^ 0x0000100000000000L)
+	};
+	final long[] times = new long[]{START, START + 1, START + 2,
+	    START + 3};
+	assertRoundTrip(times, values);
+
+	// 128 bits of first sample, 14 + 21 of the second with a new window
+	// and 1 + 10 of the third within it: 174 bits, a new window would
+	// take 179
+	final RateSeriesEncoder encoder = new RateSeriesEncoder(3);
+	encoder.add(times[0], values[0]);
+	encoder.add(times[1], values[1]);
+	encoder.add(times[2], values[2]);
+	assertEquals(22, encoder.toByteArray().length);
+
+    }
+
+    @Test
+    public void nanAndNegativeValues() {
+
+	assertRoundTrip(new long[]{START, START + 1, START + 2, START + 3,
+		    START + 4, START + 5, START + 6},
+		new double[]{-0.75, Double.NaN, -0.0, 0.0,
+		    Double.NEGATIVE_INFINITY, Double.longBitsToDouble(
+		    0x7FF8000000000001L), -Double.MIN_VALUE});
+
+    }
+
+    @Test
+    public void randomSeries() {
+
+	final Random random = new Random(42);
+	final int n = 500;
+	final long[] times = new long[n];
+	final double[] values = new double[n];
+
+	long time = START;
+	double value = 1.3;
+	for (int i = 0; i < n; i++) {
+	    time += random.nextInt(4) == 0
+		    ? random.nextInt(1 << 30) : 60 * 60 * 1000;
+	    value *= 1 + (random.nextDouble() - 0.5) / 100;
+	    times[i] = time;
+	    values[i] = random.nextInt(5) == 0 && i > 0 ? values[i - 1] : value;
+	}
+
+	assertRoundTrip(times, values);
+
+    }
+
+    private static void assertRoundTrip(long[] times, double[] values) {
+
+	final RateSeriesEncoder encoder = new RateSeriesEncoder(times.length);
+	for (int i = 0; i < times.length; i++) {
+	    encoder.add(times[i], values[i]);
+	}
+	assertEquals(times.length, encoder.getCount());
+
+	final RateSeriesDecoder decoder =
+		new RateSeriesDecoder(encoder.toByteArray(), times.length);
+	for (int i = 0; i < times.length; i++) {
+	    assertTrue("sample " + i, decoder.next());
+	    assertEquals("time of sample " + i, times[i], decoder.getTime());
+	    assertEquals("value of sample " + i,
+		    Double.doubleToRawLongBits(values[i]),
+		    Double.doubleToRawLongBits(decoder.getValue()));
+	}
+	assertFalse(decoder.next());
+
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import org.junit.Test;
+
+/**
+ * Replays a recorded feed against {@link SyncScheduler} and fixed polling
+ * intervals, and reports the number of fetches against how stale the
+ * fetched rates get. The feed has a volatile week, a calm week and closed
+ * weekends.
+ */
+public class SyncSchedulerSimulationTest {
+
+    private static final String FEED = "recorded-feed.txt";
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final long WEEK = 7 * 24 * HOUR;
+
+    /**
+     * Times the next sync from the one at <code>now</code>.
+     */
+    private interface Policy {
+
+	long getNextSyncTime(long now, double changeRate);
+
+    }
+
+    private static final Policy ADAPTIVE = new Policy() {
+
+	public long getNextSyncTime(long now, double changeRate) {
+	    return SyncScheduler.getNextSyncTime(now, changeRate);
+	}
+
+    };
+
+    private static final class Result {
+
+	int fetches;
+
+	int firstWeekFetches;
+
+	int closedFetches;
+
+	/**
+	 * Sum of delays from a change in the feed to its fetch.
+	 */
+	long staleness;
+
+	long maxStaleness;
+
+	int changes;
+
+	/**
+	 * Sum of mean relative differences between the feed and the fetched
+	 * rates, sampled at every snapshot.
+	 */
+	double error;
+
+	int samples;
+
+	double getMeanStalenessHours() {
+	    return changes > 0 ? (double) staleness / changes / HOUR : 0;
+	}
+
+	double getMeanErrorPercent() {
+	    return samples > 0 ? error / samples * 100 : 0;
+	}
+
+    }
+
+    private final long[] mTimes;
+
+    private final double[][] mRates;
+
+    public SyncSchedulerSimulationTest() throws IOException {
+
+	final ArrayList<long[]> times = new ArrayList<long[]>();
+	final ArrayList<double[]> rates = new ArrayList<double[]>();
+	final BufferedReader reader = new BufferedReader(new InputStreamReader(
+		getClass().getResourceAsStream(FEED), "UTF-8"));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		if (line.length() == 0 || line.startsWith("#")) {
+		    continue;
+		}
+		final String[] fields = line.split(" ");
+		final double[] snapshot = new double[fields.length - 1];
+		for (int i = 0; i < snapshot.length; i++) {
+		    snapshot[i] = Double.parseDouble(fields[i + 1]);
+		}
+		// feed timestamps are in seconds
+		times.add(new long[]{Long.parseLong(fields[0]) * 1000});
+		rates.add(snapshot);
+	    }
+	} finally {
+	    reader.close();
+	}
+
+	mTimes = new long[times.size()];
+	for (int i = 0; i < mTimes.length; i++) {
+	    mTimes[i] = times.get(i)[0];
+	}
+	mRates = rates.toArray(new double[rates.size()][]);
+
+    }
+
+    @Test
+    public void testAdaptiveScheduling() {
+
+	final Result adaptive = replay("adaptive", ADAPTIVE);
+	final Result hourly = replay("every hour", fixed(HOUR));
+	final Result daily = replay("default interval",
+		fixed(CurrencySyncService.DEFAULT_SYNC_INTERVAL));
+	final Result sameFetches = replay("same fetches",
+		fixed((mTimes[mTimes.length - 1] - mTimes[0]) / adaptive.fetches));
+
+	// polls less than hourly, and is closer to the feed than polling as
+	// often at fixed intervals
+	assertTrue(adaptive.fetches < hourly.fetches / 2);
+	assertTrue(adaptive.getMeanErrorPercent()
+		< sameFetches.getMeanErrorPercent());
+	assertTrue(adaptive.getMeanErrorPercent()
+		< daily.getMeanErrorPercent());
+
+	// fetches follow volatility and the market hours
+	assertTrue(adaptive.firstWeekFetches
+		> 2 * (adaptive.fetches - adaptive.firstWeekFetches));
+	assertEquals(0, adaptive.closedFetches);
+
+    }
+
+    private static Policy fixed(final long interval) {
+
+	return new Policy() {
+
+	    public long getNextSyncTime(long now, double changeRate) {
+		return now + interval;
+	    }
+
+	};
+
+    }
+
+    /**
+     * Syncs at the times given by policy from the first snapshot to the
+     * last one, each sync fetching the latest snapshot.
+     */
+    private Result replay(String name, Policy policy) {
+
+	final Result result = new Result();
+	final long end = mTimes[mTimes.length - 1];
+
+	double changeRate = -1;
+	int fetched = -1;
+	long lastSync = -1;
+	int snapshot = 0;
+
+	for (long now = mTimes[0]; now <= end;
+		now = policy.getNextSyncTime(now, changeRate)) {
+
+	    // snapshots published since the previous fetch
+	    while (snapshot + 1 < mTimes.length
+		    && mTimes[snapshot + 1] <= now) {
+		snapshot++;
+		sample(result, fetched, snapshot, now);
+	    }
+
+	    final double movement = fetched == -1 ? Double.NaN
+		    : getMovement(mRates[fetched], mRates[snapshot]);
+	    // kept as float in preferences
+	    changeRate = (float) SyncScheduler.addSample(changeRate,
+		    lastSync == -1 ? -1 : now - lastSync, movement);
+
+	    result.fetches++;
+	    if (now - mTimes[0] < WEEK) {
+		result.firstWeekFetches++;
+	    }
+	    // the closing rates are fetched at the close
+	    if (lastSync != -1
+		    && SyncScheduler.skipMarketClose(lastSync, now) != now) {
+		result.closedFetches++;
+	    }
+	    fetched = snapshot;
+	    lastSync = now;
+
+	}
+
+	// snapshots never fetched
+	while (snapshot + 1 < mTimes.length) {
+	    snapshot++;
+	    sample(result, fetched, snapshot, end);
+	}
+
+	System.out.println(String.format(
+		"%-16s %4d fetches, staleness mean %5.2f h max %3d h, "
+		+ "error mean %.3f%%", name, result.fetches,
+		result.getMeanStalenessHours(), result.maxStaleness / HOUR,
+		result.getMeanErrorPercent()));
+	return result;
+
+    }
+
+    /**
+     * Records staleness of snapshot fetched at <code>now</code> and the
+     * error of the rates fetched before it.
+     */
+    private void sample(Result result, int fetched, int snapshot, long now) {
+
+	final long staleness = now - mTimes[snapshot];
+	if (getMovement(mRates[snapshot - 1], mRates[snapshot]) > 0) {
+	    result.staleness += staleness;
+	    result.maxStaleness = Math.max(result.maxStaleness, staleness);
+	    result.changes++;
+	}
+
+	// a snapshot fetched as it is published is never out of date
+	if (staleness > 0) {
+	    result.error += getMovement(mRates[fetched], mRates[snapshot]);
+	}
+	result.samples++;
+
+    }
+
+    /**
+     * Returns mean relative change of rates, as measured by the sync.
+     */
+    private static double getMovement(double[] from, double[] to) {
+
+	double movement = 0;
+	for (int i = 0; i < from.length; i++) {
+	    movement += Math.abs(to[i] / from[i] - 1);
+	}
+	return movement / from.length;
+
+    }
+
+}
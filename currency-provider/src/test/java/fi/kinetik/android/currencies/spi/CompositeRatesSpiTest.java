@@ -0,0 +1,291 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Parallel loads of {@link CompositeRatesSpi} from stub SPIs: the deadline,
+ * failing providers, rebasing and both ways of merging.
+ */
+public class CompositeRatesSpiTest {
+
+    private static final long OLDER = 1325498400000L;
+
+    private static final long NEWER = OLDER + 60 * 60 * 1000;
+
+    private static final double DELTA = 1e-9;
+
+    /**
+     * SPI that loads fixed rates, fails or blocks until interrupted.
+     */
+    private static final class StubSpi implements RatesSpi {
+
+	private final String mName;
+
+	private final RateBatch mRates = new RateBatch();
+
+	private boolean mFailing;
+
+	private boolean mBlocking;
+
+	final CountDownLatch mInterrupted = new CountDownLatch(1);
+
+	StubSpi(String name) {
+	    mName = name;
+	}
+
+	StubSpi rate(String currency, long updated, double rate) {
+	    mRates.add(currency, updated, rate);
+	    return this;
+	}
+
+	StubSpi failing() {
+	    mFailing = true;
+	    return this;
+	}
+
+	StubSpi blocking() {
+	    mBlocking = true;
+	    return this;
+	}
+
+	public void loadData(RateBatch batch) throws IOException,
+		RatesSpiException {
+
+	    if (mFailing) {
+		throw new IOException(mName + " is down");
+	    }
+	    if (mBlocking) {
+		try {
+		    Thread.sleep(60 * 1000);
+		} catch (InterruptedException e) {
+		    mInterrupted.countDown();
+		    throw new IOException("interrupted");
+		}
+	    }
+	    for (int i = 0; i < mRates.size(); i++) {
+		batch.add(mRates.getCurrency(i), mRates.getUpdated(i),
+			mRates.getRate(i));
+	    }
+
+	}
+
+	public String getProviderName() {
+	    return mName;
+	}
+
+    }
+
+    /**
+     * Health that records what it was told and backs off given providers.
+     */
+    private static final class RecordingHealth implements ProviderHealth {
+
+	final List<String> mBackingOff = new ArrayList<String>();
+
+	final List<String> mSucceeded = new ArrayList<String>();
+
+	final List<String> mFailed = new ArrayList<String>();
+
+	public boolean isBackingOff(String provider) {
+	    return mBackingOff.contains(provider);
+	}
+
+	public synchronized void onSuccess(String provider) {
+	    mSucceeded.add(provider);
+	}
+
+	public synchronized void onFailure(String provider) {
+	    mFailed.add(provider);
+	}
+
+    }
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+
+    private RateBatch load(StubSpi[] spis, String[] bases,
+	    boolean mergeByFreshness, long timeout, ProviderHealth health)
+	    throws IOException, RatesSpiException {
+
+	final RateBatch batch = new RateBatch();
+	batch.setHealth(health);
+	try {
+	    new CompositeRatesSpi(mExecutor, spis, bases, "USD",
+		    mergeByFreshness, timeout).loadData(batch);
+	} finally {
+	    mExecutor.shutdownNow();
+	}
+	return batch;
+
+    }
+
+    private static StubSpi[] newOverlapping() {
+
+	return new StubSpi[]{
+	    new StubSpi("First").rate("EUR", OLDER, 0.80).
+		    rate("GBP", OLDER, 0.64),
+	    new StubSpi("Second").rate("EUR", NEWER, 0.78).
+		    rate("JPY", NEWER, 77.0)
+	};
+
+    }
+
+    private static void assertRate(RateBatch batch, String currency,
+	    double rate, long updated, String provider) {
+
+	final int i = batch.indexOf(currency);
+	assertTrue(currency + " missing", i != -1);
+	assertEquals(rate, batch.getRate(i), DELTA);
+	assertEquals(updated, batch.getUpdated(i));
+	assertEquals(provider, batch.getProvider(i));
+
+    }
+
+    @Test
+    public void testMergeByPriority() throws Exception {
+
+	final RateBatch batch = load(newOverlapping(),
+		new String[]{"USD", "USD"}, false, 5000, null);
+
+	assertEquals(3, batch.size());
+	assertFalse(batch.isPartial());
+	assertRate(batch, "EUR", 0.80, OLDER, "First");
+	assertRate(batch, "GBP", 0.64, OLDER, "First");
+	assertRate(batch, "JPY", 77.0, NEWER, "Second");
+
+    }
+
+    @Test
+    public void testMergeByFreshness() throws Exception {
+
+	final RateBatch batch = load(newOverlapping(),
+		new String[]{"USD", "USD"}, true, 5000, null);
+
+	assertEquals(3, batch.size());
+	assertRate(batch, "EUR", 0.78, NEWER, "Second");
+	assertRate(batch, "GBP", 0.64, OLDER, "First");
+	assertRate(batch, "JPY", 77.0, NEWER, "Second");
+
+    }
+
+    @Test
+    public void testRebase() throws Exception {
+
+	// rates per euro are rebased to the dollar
+	final StubSpi[] spis = new StubSpi[]{
+	    new StubSpi("Euro").rate("USD", NEWER, 1.25).
+		    rate("GBP", NEWER, 0.8),
+	    new StubSpi("Yen").rate("EUR", OLDER, 100)
+	};
+	final RateBatch batch = load(spis, new String[]{"EUR", "JPY"}, false,
+		5000, null);
+
+	assertRate(batch, "EUR", 0.8, NEWER, "Euro");
+	assertRate(batch, "USD", 1.0, NEWER, "Euro");
+	assertRate(batch, "GBP", 0.64, NEWER, "Euro");
+	// the yen provider has no rate for the dollar
+	assertEquals(3, batch.size());
+	assertTrue(batch.isPartial());
+
+    }
+
+    @Test
+    public void testSlowProviderPastDeadline() throws Exception {
+
+	final StubSpi slow = new StubSpi("Slow").blocking();
+	final StubSpi[] spis = new StubSpi[]{
+	    slow, new StubSpi("Fast").rate("EUR", NEWER, 0.78)
+	};
+	final RecordingHealth health = new RecordingHealth();
+
+	final long start = System.currentTimeMillis();
+	final RateBatch batch = load(spis, new String[]{"USD", "USD"}, false,
+		200, health);
+
+	assertTrue(System.currentTimeMillis() - start < 5000);
+	assertTrue(batch.isPartial());
+	assertEquals(1, batch.size());
+	assertRate(batch, "EUR", 0.78, NEWER, "Fast");
+	assertTrue("slow load not interrupted",
+		slow.mInterrupted.await(5, TimeUnit.SECONDS));
+	assertEquals("[Slow]", health.mFailed.toString());
+	assertEquals("[Fast]", health.mSucceeded.toString());
+
+    }
+
+    @Test
+    public void testFailingProvider() throws Exception {
+
+	final StubSpi[] spis = new StubSpi[]{
+	    new StubSpi("Down").failing(),
+	    new StubSpi("Up").rate("EUR", NEWER, 0.78)
+	};
+	final RecordingHealth health = new RecordingHealth();
+	final RateBatch batch = load(spis, new String[]{"USD", "USD"}, false,
+		5000, health);
+
+	assertTrue(batch.isPartial());
+	assertRate(batch, "EUR", 0.78, NEWER, "Up");
+	assertEquals("[Down]", health.mFailed.toString());
+	assertEquals("[Up]", health.mSucceeded.toString());
+
+    }
+
+    @Test
+    public void testBackingOffProviderSkipped() throws Exception {
+
+	final StubSpi[] spis = newOverlapping();
+	final RecordingHealth health = new RecordingHealth();
+	health.mBackingOff.add("First");
+	final RateBatch batch = load(spis, new String[]{"USD", "USD"}, false,
+		5000, health);
+
+	assertTrue(batch.isPartial());
+	assertEquals(2, batch.size());
+	assertRate(batch, "EUR", 0.78, NEWER, "Second");
+	assertEquals("[Second]", health.mSucceeded.toString());
+
+    }
+
+    @Test
+    public void testAllProvidersFail() throws Exception {
+
+	final StubSpi[] spis = new StubSpi[]{
+	    new StubSpi("Down").failing(), new StubSpi("Empty")
+	};
+	try {
+	    load(spis, new String[]{"USD", "USD"}, false, 5000, null);
+	    fail("loaded without providers");
+	} catch (RatesSpiException e) {
+	    assertTrue(e.getCause() instanceof IOException);
+	}
+
+    }
+
+}
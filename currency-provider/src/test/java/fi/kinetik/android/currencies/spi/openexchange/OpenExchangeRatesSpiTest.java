@@ -0,0 +1,309 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.spi.openexchange;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.SharedPreferences;
+import fi.kinetik.android.currencies.spi.FeedValidators;
+import fi.kinetik.android.currencies.spi.RateBatch;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Conditional requests of the feed: validators of a full response, not
+ * modified responses and validators stored for other feeds.
+ */
+public class OpenExchangeRatesSpiTest {
+
+    private static final String FEED = "http://localhost/latest.json";
+
+    private static final String OTHER_FEED = "http://localhost/other.json";
+
+    private static final String ETAG = "\"5c-4b1a\"";
+
+    private static final String LAST_MODIFIED =
+	    "Mon, 02 Jan 2012 10:00:00 GMT";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * Connection that answers with a fixed response code and headers.
+     */
+    private static final class StubConnection extends HttpURLConnection {
+
+	private final int mResponseCode;
+
+	private final Map<String, String> mHeaders =
+		new HashMap<String, String>();
+
+	private Map<String, List<String>> mSent;
+
+	StubConnection(int responseCode) throws IOException {
+	    super(new URL(FEED));
+	    mResponseCode = responseCode;
+	}
+
+	StubConnection withHeader(String name, String value) {
+	    mHeaders.put(name, value);
+	    return this;
+	}
+
+	/**
+	 * Returns request header sent with the request.
+	 */
+	String getSentHeader(String name) {
+	    final List<String> values = mSent.get(name);
+	    return values != null ? values.get(0) : null;
+	}
+
+	@Override
+	public int getResponseCode() {
+	    connect();
+	    return mResponseCode;
+	}
+
+	@Override
+	public String getHeaderField(String name) {
+	    return mHeaders.get(name);
+	}
+
+	@Override
+	public void connect() {
+	    if (!connected) {
+		mSent = getRequestProperties();
+		connected = true;
+	    }
+	}
+
+	@Override
+	public void disconnect() {
+	    connected = false;
+	}
+
+	@Override
+	public boolean usingProxy() {
+	    return false;
+	}
+
+    }
+
+    /**
+     * Preferences kept in memory, only strings are supported.
+     */
+    private static final class MemoryPreferences implements SharedPreferences,
+	    SharedPreferences.Editor {
+
+	private final Map<String, String> mValues =
+		new HashMap<String, String>();
+
+	public Map<String, ?> getAll() {
+	    return new HashMap<String, String>(mValues);
+	}
+
+	public String getString(String key, String defValue) {
+	    final String value = mValues.get(key);
+	    return value != null ? value : defValue;
+	}
+
+	public Set<String> getStringSet(String key, Set<String> defValues) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public int getInt(String key, int defValue) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public long getLong(String key, long defValue) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public float getFloat(String key, float defValue) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public boolean getBoolean(String key, boolean defValue) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public boolean contains(String key) {
+	    return mValues.containsKey(key);
+	}
+
+	public Editor edit() {
+	    return this;
+	}
+
+	public void registerOnSharedPreferenceChangeListener(
+		OnSharedPreferenceChangeListener listener) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public void unregisterOnSharedPreferenceChangeListener(
+		OnSharedPreferenceChangeListener listener) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor putString(String key, String value) {
+	    mValues.put(key, value);
+	    return this;
+	}
+
+	public Editor putStringSet(String key, Set<String> values) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor putInt(String key, int value) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor putLong(String key, long value) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor putFloat(String key, float value) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor putBoolean(String key, boolean value) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public Editor remove(String key) {
+	    mValues.remove(key);
+	    return this;
+	}
+
+	public Editor clear() {
+	    mValues.clear();
+	    return this;
+	}
+
+	public boolean commit() {
+	    return true;
+	}
+
+	public void apply() {
+	    // changes are applied as they are made
+	}
+
+    }
+
+    private static RateBatch newBatch(boolean conditional) {
+
+	final RateBatch batch = new RateBatch();
+	batch.setConditional(conditional);
+	return batch;
+
+    }
+
+    @Test
+    public void testFullResponseSetsValidators() throws IOException {
+
+	final MemoryPreferences prefs = new MemoryPreferences();
+	final RateBatch batch = newBatch(true);
+	final StubConnection connection =
+		new StubConnection(HttpURLConnection.HTTP_OK).
+		withHeader(FeedValidators.HEADER_ETAG, ETAG).
+		withHeader(FeedValidators.HEADER_LAST_MODIFIED, LAST_MODIFIED);
+
+	assertTrue(OpenExchangeRatesSpi.connect(batch, connection, prefs,
+		FEED));
+	assertFalse(batch.isNotModified());
+	assertNull(connection.getSentHeader(HEADER_IF_NONE_MATCH));
+	assertEquals(FEED, batch.getValidatorKey());
+	assertEquals(ETAG, batch.getETag());
+	assertEquals(LAST_MODIFIED, batch.getLastModified());
+
+	// the next request of the feed carries the saved validators
+	FeedValidators.save(prefs, batch.getValidatorKey(), batch.getETag(),
+		batch.getLastModified());
+	final StubConnection next =
+		new StubConnection(HttpURLConnection.HTTP_NOT_MODIFIED);
+	assertFalse(OpenExchangeRatesSpi.connect(newBatch(true), next, prefs,
+		FEED));
+	assertEquals(ETAG, next.getSentHeader(HEADER_IF_NONE_MATCH));
+	assertEquals(LAST_MODIFIED,
+		next.getSentHeader(HEADER_IF_MODIFIED_SINCE));
+
+    }
+
+    @Test
+    public void testNotModified() throws IOException {
+
+	final MemoryPreferences prefs = new MemoryPreferences();
+	FeedValidators.save(prefs, FEED, ETAG, null);
+	final RateBatch batch = newBatch(true);
+	final StubConnection connection =
+		new StubConnection(HttpURLConnection.HTTP_NOT_MODIFIED);
+
+	assertFalse(OpenExchangeRatesSpi.connect(batch, connection, prefs,
+		FEED));
+	assertTrue(batch.isNotModified());
+	assertTrue(batch.isEmpty());
+	assertNull(batch.getValidatorKey());
+	assertEquals(ETAG, connection.getSentHeader(HEADER_IF_NONE_MATCH));
+	assertNull(connection.getSentHeader(HEADER_IF_MODIFIED_SINCE));
+
+    }
+
+    @Test
+    public void testUnconditionalRequest() throws IOException {
+
+	final MemoryPreferences prefs = new MemoryPreferences();
+	FeedValidators.save(prefs, FEED, ETAG, LAST_MODIFIED);
+	final StubConnection connection =
+		new StubConnection(HttpURLConnection.HTTP_OK);
+
+	// without stored rates the feed is loaded in full
+	assertTrue(OpenExchangeRatesSpi.connect(newBatch(false), connection,
+		prefs, FEED));
+	assertNull(connection.getSentHeader(HEADER_IF_NONE_MATCH));
+	assertNull(connection.getSentHeader(HEADER_IF_MODIFIED_SINCE));
+
+    }
+
+    @Test
+    public void testValidatorsOfOtherFeedIgnored() throws IOException {
+
+	final MemoryPreferences prefs = new MemoryPreferences();
+	FeedValidators.save(prefs, OTHER_FEED, ETAG, LAST_MODIFIED);
+	final RateBatch batch = newBatch(true);
+	final StubConnection connection =
+		new StubConnection(HttpURLConnection.HTTP_OK);
+
+	assertTrue(OpenExchangeRatesSpi.connect(batch, connection, prefs,
+		FEED));
+	assertNull(connection.getSentHeader(HEADER_IF_NONE_MATCH));
+	assertNull(connection.getSentHeader(HEADER_IF_MODIFIED_SINCE));
+	// a response without validators clears the ones of the feed
+	assertEquals(FEED, batch.getValidatorKey());
+	assertNull(batch.getETag());
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Bytes counted by {@link CountingInputStream} for each way of reading.
+ */
+public class CountingInputStreamTest {
+
+    private static CountingInputStream newStream(int length) {
+	return new CountingInputStream(new ByteArrayInputStream(
+		new byte[length]));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+
+	final CountingInputStream in = newStream(3);
+	assertEquals(0, in.getCount());
+	in.read();
+	in.read();
+	in.read();
+	assertEquals(3, in.getCount());
+	assertEquals(-1, in.read());
+	assertEquals(3, in.getCount());
+
+    }
+
+    @Test
+    public void testReadBuffer() throws IOException {
+
+	final CountingInputStream in = newStream(100);
+	final byte[] buffer = new byte[64];
+	assertEquals(64, in.read(buffer));
+	assertEquals(10, in.read(buffer, 4, 10));
+	assertEquals(26, in.read(buffer));
+	assertEquals(-1, in.read(buffer));
+	assertEquals(100, in.getCount());
+
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+
+	final CountingInputStream in = newStream(100);
+	assertEquals(40, in.skip(40));
+	in.read(new byte[10]);
+	assertEquals(50, in.skip(80));
+	assertEquals(0, in.skip(10));
+	assertEquals(100, in.getCount());
+
+    }
+
+}
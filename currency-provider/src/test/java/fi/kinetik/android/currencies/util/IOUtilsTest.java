@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011 Kinetik Oy http://www.kinetik.fi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fi.kinetik.android.currencies.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * Decoding of content encodings as the feed is read, and the bytes counted
+ * on both sides of the decoder.
+ */
+public class IOUtilsTest {
+
+    private static final String CHARSET = "UTF-8";
+
+    private static byte[] newPayload() throws IOException {
+
+	final StringBuilder json = new StringBuilder(
+		"{\"timestamp\": 1325498400, \"base\": \"USD\", \"rates\": {");
+	for (int i = 0; i < 160; i++) {
+	    json.append(i == 0 ? "" : ", ").append("\"C").append(i).
+		    append("\": ").append(1 + i / 7.0);
+	}
+	return json.append("}}").toString().getBytes(CHARSET);
+
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	final OutputStream gzip = new GZIPOutputStream(out);
+	gzip.write(data);
+	gzip.close();
+	return out.toByteArray();
+
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw)
+	    throws IOException {
+
+	final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	final Deflater deflater =
+		new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+	final OutputStream deflate = new DeflaterOutputStream(out, deflater);
+	deflate.write(data);
+	deflate.close();
+	deflater.end();
+	return out.toByteArray();
+
+    }
+
+    /**
+     * Decodes body like the feed is read and checks the content and the
+     * byte counts.
+     */
+    private static void assertDecodes(byte[] expected, byte[] body,
+	    String contentEncoding) throws IOException {
+
+	final CountingInputStream received =
+		new CountingInputStream(new ByteArrayInputStream(body));
+	final CountingInputStream decoded = new CountingInputStream(
+		IOUtils.decode(received, contentEncoding));
+	try {
+	    assertEquals(new String(expected, CHARSET),
+		    IOUtils.toString(decoded, CHARSET));
+	} finally {
+	    decoded.close();
+	}
+	assertEquals(body.length, received.getCount());
+	assertEquals(expected.length, decoded.getCount());
+
+    }
+
+    @Test
+    public void testIdentity() throws IOException {
+
+	final InputStream in = new ByteArrayInputStream(newPayload());
+	assertSame(in, IOUtils.decode(in, null));
+	assertSame(in, IOUtils.decode(in, "identity"));
+	assertDecodes(newPayload(), newPayload(), null);
+
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+
+	final byte[] payload = newPayload();
+	final byte[] body = gzip(payload);
+	assertTrue(body.length * 3 < payload.length);
+	assertDecodes(payload, body, "gzip");
+	assertDecodes(payload, body, "x-gzip");
+	assertDecodes(payload, body, "GZIP");
+
+    }
+
+    @Test
+    public void testDeflate() throws IOException {
+
+	final byte[] payload = newPayload();
+	assertDecodes(payload, deflate(payload, false), "deflate");
+
+    }
+
+    @Test
+    public void testRawDeflate() throws IOException {
+
+	final byte[] payload = newPayload();
+	assertDecodes(payload, deflate(payload, true), "deflate");
+
+    }
+
+    @Test
+    public void testEmptyDeflate() throws IOException {
+
+	assertDecodes(new byte[0], deflate(new byte[0], false), "deflate");
+	assertDecodes(new byte[0], deflate(new byte[0], true), "deflate");
+
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedEncoding() throws IOException {
+	IOUtils.decode(new ByteArrayInputStream(newPayload()), "br");
+    }
+
+}